@@ -1,97 +1,202 @@
-// import javafx.application.Application;
-// import javafx.geometry.Insets;
-// import javafx.scene.Scene;
-// import javafx.scene.control.*;
-// import javafx.scene.layout.*;
-// import javafx.stage.FileChooser;
-// import javafx.stage.Stage;
-// import java.io.*;
-
-// public class InterpreterUI extends Application {
-
-//     private TextArea codeArea;
-//     private TextArea outputArea;
-
-//     @Override
-//     public void start(Stage stage) {
-//         stage.setTitle("MiniInterpreter - JavaFX UI");
-
-//         // --- Code Input Area ---
-//         codeArea = new TextArea();
-//         codeArea.setPromptText("Write your code here...");
-//         codeArea.setWrapText(true);
-//         codeArea.setStyle("-fx-font-family: 'Consolas'; -fx-font-size: 14px;");
-
-//         // --- Output Area ---
-//         outputArea = new TextArea();
-//         outputArea.setEditable(false);
-//         outputArea.setWrapText(true);
-//         outputArea.setStyle("-fx-font-family: 'Consolas'; -fx-font-size: 13px; -fx-control-inner-background: #1e1e1e; -fx-text-fill: white;");
-
-//         // --- Buttons ---
-//         Button runButton = new Button("▶ Run");
-//         Button clearButton = new Button("🧹 Clear");
-//         Button loadButton = new Button("📂 Load File");
-
-//         runButton.setOnAction(e -> runInterpreter());
-//         clearButton.setOnAction(e -> {
-//             codeArea.clear();
-//             outputArea.clear();
-//         });
-//         loadButton.setOnAction(e -> loadFile(stage));
-
-//         HBox buttonBar = new HBox(10, runButton, clearButton, loadButton);
-//         buttonBar.setPadding(new Insets(10));
-
-//         // --- Layout ---
-//         VBox layout = new VBox(10,
-//                 new Label("MiniInterpreter Code Editor"),
-//                 codeArea,
-//                 buttonBar,
-//                 new Label("Output:"),
-//                 outputArea
-//         );
-//         layout.setPadding(new Insets(10));
-
-//         Scene scene = new Scene(layout, 900, 700);
-//         stage.setScene(scene);
-//         stage.show();
-
-//         // optional: load the demo program by default
-//         codeArea.setText(MiniInterpreter.demoProgram());
-//     }
-
-//     private void runInterpreter() {
-//         String code = codeArea.getText();
-//         if (code.trim().isEmpty()) {
-//             outputArea.setText("⚠ Please enter some code to run!");
-//             return;
-//         }
-
-//         try {
-//             String result = MiniInterpreter.runSource(code);
-//             outputArea.setText(result);
-//         } catch (Exception ex) {
-//             outputArea.setText("Runtime Error:\n" + ex.getMessage());
-//         }
-//     }
-
-//     private void loadFile(Stage stage) {
-//         FileChooser fileChooser = new FileChooser();
-//         fileChooser.setTitle("Open MiniInterpreter Source File");
-//         fileChooser.getExtensionFilters().add(new FileChooser.ExtensionFilter("Source Files", "*.txt", "*.mini", "*.code"));
-//         File selectedFile = fileChooser.showOpenDialog(stage);
-//         if (selectedFile != null) {
-//             try {
-//                 String content = new String(java.nio.file.Files.readAllBytes(selectedFile.toPath()));
-//                 codeArea.setText(content);
-//             } catch (IOException e) {
-//                 outputArea.setText("Error loading file: " + e.getMessage());
-//             }
-//         }
-//     }
-
-//     public static void main(String[] args) {
-//         launch(args);
-//     }
-// }
+import javafx.animation.KeyFrame;
+import javafx.animation.Timeline;
+import javafx.application.Application;
+import javafx.application.Platform;
+import javafx.concurrent.Task;
+import javafx.geometry.Insets;
+import javafx.scene.Scene;
+import javafx.scene.control.*;
+import javafx.scene.layout.*;
+import javafx.stage.FileChooser;
+import javafx.stage.Stage;
+import javafx.util.Duration;
+import java.io.*;
+
+public class InterpreterUI extends Application {
+
+    // printing past this ends the run, so a runaway print loop can't grow the output area without bound
+    private static final long MAX_OUTPUT_BYTES = 2L << 20;
+
+    private TextArea codeArea;
+    private TextArea outputArea;
+    private Label statusLabel;
+    private Button runButton;
+    private Button cancelButton;
+
+    // --- state of the run in progress (null when idle)
+    private MiniInterpreter running;
+    private long runStartNanos;
+    private Timeline statusTicker;
+
+    // printed lines waiting for the FX thread; flushed in one appendText per runLater
+    private final StringBuilder pendingOutput = new StringBuilder();
+    private boolean flushScheduled;
+
+    @Override
+    public void start(Stage stage) {
+        stage.setTitle("MiniInterpreter - JavaFX UI");
+
+        // --- Code Input Area ---
+        codeArea = new TextArea();
+        codeArea.setPromptText("Write your code here...");
+        codeArea.setWrapText(true);
+        codeArea.setStyle("-fx-font-family: 'Consolas'; -fx-font-size: 14px;");
+
+        // --- Output Area ---
+        outputArea = new TextArea();
+        outputArea.setEditable(false);
+        outputArea.setWrapText(true);
+        outputArea.setStyle("-fx-font-family: 'Consolas'; -fx-font-size: 13px; -fx-control-inner-background: #1e1e1e; -fx-text-fill: white;");
+
+        // --- Buttons ---
+        runButton = new Button("▶ Run");
+        cancelButton = new Button("■ Cancel");
+        Button clearButton = new Button("🧹 Clear");
+        Button loadButton = new Button("📂 Load File");
+        cancelButton.setDisable(true);
+
+        runButton.setOnAction(e -> runInterpreter());
+        cancelButton.setOnAction(e -> cancelRun());
+        clearButton.setOnAction(e -> {
+            codeArea.clear();
+            outputArea.clear();
+        });
+        loadButton.setOnAction(e -> loadFile(stage));
+
+        HBox buttonBar = new HBox(10, runButton, cancelButton, clearButton, loadButton);
+        buttonBar.setPadding(new Insets(10));
+
+        // --- Status Bar ---
+        statusLabel = new Label("Ready");
+
+        // --- Layout ---
+        VBox layout = new VBox(10,
+                new Label("MiniInterpreter Code Editor"),
+                codeArea,
+                buttonBar,
+                new Label("Output:"),
+                outputArea,
+                statusLabel
+        );
+        layout.setPadding(new Insets(10));
+
+        Scene scene = new Scene(layout, 900, 700);
+        stage.setScene(scene);
+        stage.setOnCloseRequest(e -> cancelRun());
+        stage.show();
+
+        // optional: load the demo program by default
+        codeArea.setText(MiniInterpreter.demoProgram());
+    }
+
+    private void runInterpreter() {
+        String code = codeArea.getText();
+        if (code.trim().isEmpty()) {
+            outputArea.setText("⚠ Please enter some code to run!");
+            return;
+        }
+
+        // run on a background worker so long loops don't freeze the UI
+        MiniInterpreter interp = new MiniInterpreter(code);
+        interp.setOutputListener(this::queueOutput);
+        MiniInterpreter.Limits limits = new MiniInterpreter.Limits();
+        limits.maxOutputBytes = MAX_OUTPUT_BYTES;
+        interp.setLimits(limits);
+        Task<MiniInterpreter.RunResult> task = new Task<>() {
+            @Override
+            protected MiniInterpreter.RunResult call() {
+                return interp.execute();
+            }
+        };
+        task.setOnSucceeded(e -> finishRun(task.getValue(), null));
+        task.setOnFailed(e -> finishRun(null, task.getException()));
+
+        synchronized (pendingOutput) { pendingOutput.setLength(0); }
+        outputArea.clear();
+        running = interp;
+        runStartNanos = System.nanoTime();
+        runButton.setDisable(true);
+        cancelButton.setDisable(false);
+        statusTicker = new Timeline(new KeyFrame(Duration.millis(250), e -> updateStatus("Running")));
+        statusTicker.setCycleCount(Timeline.INDEFINITE);
+        statusTicker.play();
+
+        Thread worker = new Thread(task, "interpreter-run");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    private void cancelRun() {
+        if (running != null) running.cancel();
+    }
+
+    // called on the worker thread for every printed line
+    private void queueOutput(String line) {
+        synchronized (pendingOutput) {
+            pendingOutput.append(line).append('\n');
+            if (flushScheduled) return;
+            flushScheduled = true;
+        }
+        Platform.runLater(this::flushOutput);
+    }
+
+    private void flushOutput() {
+        String chunk;
+        synchronized (pendingOutput) {
+            chunk = pendingOutput.toString();
+            pendingOutput.setLength(0);
+            flushScheduled = false;
+        }
+        if (!chunk.isEmpty()) outputArea.appendText(chunk);
+    }
+
+    // exactly one of result / failure is set; failure is an exception that escaped execute()
+    private void finishRun(MiniInterpreter.RunResult result, Throwable failure) {
+        flushOutput();
+        statusTicker.stop();
+        runButton.setDisable(false);
+        cancelButton.setDisable(true);
+        if (failure != null) {
+            outputArea.appendText("Runtime Error:\n" + failure + "\n");
+        } else {
+            // CFG summaries go above the program output, as in runSource
+            if (!result.stderr.isEmpty()) outputArea.insertText(0, result.stderr);
+            if (result.error instanceof MiniInterpreter.CancelledError) outputArea.appendText("⏹ Cancelled\n");
+            else if (result.error != null) outputArea.appendText("Runtime Error:\n" + result.error + "\n");
+            else if (outputArea.getText().isEmpty()) outputArea.setText("(no output)\n");
+        }
+        String state;
+        if (failure != null) state = "Failed";
+        else if (result.ok()) state = "Finished";
+        else state = result.error instanceof MiniInterpreter.CancelledError ? "Cancelled" : "Failed";
+        updateStatus(state);
+        running = null;
+    }
+
+    private void updateStatus(String state) {
+        if (running == null) return;
+        double secs = (System.nanoTime() - runStartNanos) / 1e9;
+        long stmts = running.statementsExecuted();
+        long rate = secs > 0 ? (long) (stmts / secs) : 0;
+        statusLabel.setText(String.format("%s — %.2f s elapsed, %,d statements (%,d/s)", state, secs, stmts, rate));
+    }
+
+    private void loadFile(Stage stage) {
+        FileChooser fileChooser = new FileChooser();
+        fileChooser.setTitle("Open MiniInterpreter Source File");
+        fileChooser.getExtensionFilters().add(new FileChooser.ExtensionFilter("Source Files", "*.txt", "*.mini", "*.code"));
+        File selectedFile = fileChooser.showOpenDialog(stage);
+        if (selectedFile != null) {
+            try {
+                String content = new String(java.nio.file.Files.readAllBytes(selectedFile.toPath()));
+                codeArea.setText(content);
+            } catch (IOException e) {
+                outputArea.setText("Error loading file: " + e.getMessage());
+            }
+        }
+    }
+
+    public static void main(String[] args) {
+        launch(args);
+    }
+}
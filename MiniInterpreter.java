@@ -1,15 +1,19 @@
 import java.io.*;
 import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
 
 
 public class MiniInterpreter {
     enum Tok {
-    END, INT, ID,
-    KW_IF, KW_ELSE, KW_WHILE, KW_FUNC, KW_RETURN, KW_PRINT, KW_INT,
+    END, INT, STR, ID,
+    KW_IF, KW_ELSE, KW_WHILE, KW_FUNC, KW_RETURN, KW_PRINT, KW_INT, KW_PARFOR, KW_SPAWN,
     PLUS, MINUS, MUL, DIV, MOD,
     ASSIGN, EQ, NEQ, LT, LTE, GT, GTE,
-    LPAREN, RPAREN, LBRACE, RBRACE, COMMA, SEMI
+    LPAREN, RPAREN, LBRACE, RBRACE, LBRACKET, RBRACKET, COMMA, SEMI
 }
 
 
@@ -17,6 +21,7 @@ public class MiniInterpreter {
         Tok type;
         String text;
         long intVal;
+        int pos; // offset into src, for error positions
         Token(Tok t, String txt) { type = t; text = (txt==null?"":txt); }
         Token(long v) { type = Tok.INT; intVal = v; text = Long.toString(v); }
         public String toString(){ return type + ":" + (text==null?"":text); }
@@ -37,10 +42,11 @@ public class MiniInterpreter {
         void clear(){ q.clear(); }
     }
 
-    // --- runtime / lexical buffers (reset before each run)
-    static String src;
-    static int pos;
-    static TokenQueue tokenQueue = new TokenQueue();
+    // --- runtime / lexical buffers (one interpreter instance per run)
+    String src;
+    int pos;
+    int tokStart;
+    TokenQueue tokenQueue = new TokenQueue();
 
     // KMP (Knuth-Morris-Pratt) utility — included/available for string search tasks
     static int[] kmpBuild(String pat){
@@ -57,8 +63,11 @@ public class MiniInterpreter {
         return lps;
     }
     static int kmpFind(String text, String pat, int from){
+        return kmpFind(text, pat, kmpBuild(pat), from);
+    }
+    // search with a precomputed lps table for pat
+    static int kmpFind(String text, String pat, int[] lps, int from){
         if (pat.length()==0) return from;
-        int[] lps = kmpBuild(pat);
         int i = from, j = 0;
         while (i < text.length()){
             if (text.charAt(i) == pat.charAt(j)){ i++; j++; if (j==pat.length()) return i-j; }
@@ -70,13 +79,17 @@ public class MiniInterpreter {
         return -1;
     }
 
+    static final String COMMENT_END = "*/";
+    static final int[] COMMENT_END_LPS = kmpBuild(COMMENT_END);
+
     static boolean isIdentStart(char c){ return Character.isLetter(c) || c == '_'; }
     static boolean isIdentChar(char c){ return Character.isLetterOrDigit(c) || c == '_'; }
 
-    static void lexAll() {
+    void lexAll() {
         tokenQueue.clear();
         pos = 0;
         while (pos < src.length()) {
+            tokStart = pos;
             char c = src.charAt(pos);
             // whitespace
             if (Character.isWhitespace(c)){ pos++; continue; }
@@ -87,7 +100,7 @@ public class MiniInterpreter {
             }
             if (c=='/' && pos+1 < src.length() && src.charAt(pos+1)=='*') {
                 pos += 2;
-                int end = kmpFind(src, "*/", pos);
+                int end = kmpFind(src, COMMENT_END, COMMENT_END_LPS, pos);
                 if (end < 0) pos = src.length(); else pos = end + 2;
                 continue;
             }
@@ -98,7 +111,28 @@ public class MiniInterpreter {
                     val = val*10 + (src.charAt(pos)-'0');
                     pos++;
                 }
-                tokenQueue.push(new Token(val));
+                push(new Token(val));
+                continue;
+            }
+            // string literal with \n \t \" \\ escapes
+            if (c == '"') {
+                StringBuilder sb = new StringBuilder();
+                pos++;
+                while (true) {
+                    if (pos >= src.length()){ pos = tokStart; throw new RuntimeException("Unterminated string literal"); }
+                    char ch = src.charAt(pos++);
+                    if (ch == '"') break;
+                    if (ch != '\\') { sb.append(ch); continue; }
+                    if (pos >= src.length()){ pos = tokStart; throw new RuntimeException("Unterminated string literal"); }
+                    char esc = src.charAt(pos++);
+                    switch(esc){
+                        case 'n': sb.append('\n'); break;
+                        case 't': sb.append('\t'); break;
+                        case '"': case '\\': sb.append(esc); break;
+                        default: pos -= 2; throw new RuntimeException("Unknown escape '\\" + esc + "'");
+                    }
+                }
+                push(new Token(Tok.STR, sb.toString()));
                 continue;
             }
             // identifier or keyword
@@ -108,13 +142,15 @@ public class MiniInterpreter {
                 while (pos < src.length() && isIdentChar(src.charAt(pos))) pos++;
                 String word = src.substring(start, pos);
                 switch(word){
-                    case "if": tokenQueue.push(new Token(Tok.KW_IF, word)); break;
-                    case "else": tokenQueue.push(new Token(Tok.KW_ELSE, word)); break;
-                    case "while": tokenQueue.push(new Token(Tok.KW_WHILE, word)); break;
-                    case "func": tokenQueue.push(new Token(Tok.KW_FUNC, word)); break;
-                    case "return": tokenQueue.push(new Token(Tok.KW_RETURN, word)); break;
-                    case "print": tokenQueue.push(new Token(Tok.KW_PRINT, word)); break;
-                    default: tokenQueue.push(new Token(Tok.ID, word)); break;
+                    case "if": push(new Token(Tok.KW_IF, word)); break;
+                    case "else": push(new Token(Tok.KW_ELSE, word)); break;
+                    case "while": push(new Token(Tok.KW_WHILE, word)); break;
+                    case "func": push(new Token(Tok.KW_FUNC, word)); break;
+                    case "return": push(new Token(Tok.KW_RETURN, word)); break;
+                    case "print": push(new Token(Tok.KW_PRINT, word)); break;
+                    case "parfor": push(new Token(Tok.KW_PARFOR, word)); break;
+                    case "spawn": push(new Token(Tok.KW_SPAWN, word)); break;
+                    default: push(new Token(Tok.ID, word)); break;
                 }
                 continue;
             }
@@ -122,40 +158,49 @@ public class MiniInterpreter {
             if (pos+1 < src.length()){
                 String two = src.substring(pos, pos+2);
                 switch(two){
-                    case "==": tokenQueue.push(new Token(Tok.EQ, two)); pos+=2; continue;
-                    case "!=": tokenQueue.push(new Token(Tok.NEQ, two)); pos+=2; continue;
-                    case "<=": tokenQueue.push(new Token(Tok.LTE, two)); pos+=2; continue;
-                    case ">=": tokenQueue.push(new Token(Tok.GTE, two)); pos+=2; continue;
+                    case "==": push(new Token(Tok.EQ, two)); pos+=2; continue;
+                    case "!=": push(new Token(Tok.NEQ, two)); pos+=2; continue;
+                    case "<=": push(new Token(Tok.LTE, two)); pos+=2; continue;
+                    case ">=": push(new Token(Tok.GTE, two)); pos+=2; continue;
                 }
             }
             // single-char tokens
             switch(c){
-                case '+': tokenQueue.push(new Token(Tok.PLUS, "+")); pos++; break;
-                case '-': tokenQueue.push(new Token(Tok.MINUS, "-")); pos++; break;
-                case '*': tokenQueue.push(new Token(Tok.MUL, "*")); pos++; break;
-                case '/': tokenQueue.push(new Token(Tok.DIV, "/")); pos++; break;
-                case '%': tokenQueue.push(new Token(Tok.MOD, "%")); pos++; break;
-                case '=': tokenQueue.push(new Token(Tok.ASSIGN, "=")); pos++; break;
-                case '<': tokenQueue.push(new Token(Tok.LT, "<")); pos++; break;
-                case '>': tokenQueue.push(new Token(Tok.GT, ">")); pos++; break;
-                case '(': tokenQueue.push(new Token(Tok.LPAREN, "(")); pos++; break;
-                case ')': tokenQueue.push(new Token(Tok.RPAREN, ")")); pos++; break;
-                case '{': tokenQueue.push(new Token(Tok.LBRACE, "{")); pos++; break;
-                case '}': tokenQueue.push(new Token(Tok.RBRACE, "}")); pos++; break;
-                case ',': tokenQueue.push(new Token(Tok.COMMA, ",")); pos++; break;
-                case ';': tokenQueue.push(new Token(Tok.SEMI, ";")); pos++; break;
+                case '+': push(new Token(Tok.PLUS, "+")); pos++; break;
+                case '-': push(new Token(Tok.MINUS, "-")); pos++; break;
+                case '*': push(new Token(Tok.MUL, "*")); pos++; break;
+                case '/': push(new Token(Tok.DIV, "/")); pos++; break;
+                case '%': push(new Token(Tok.MOD, "%")); pos++; break;
+                case '=': push(new Token(Tok.ASSIGN, "=")); pos++; break;
+                case '<': push(new Token(Tok.LT, "<")); pos++; break;
+                case '>': push(new Token(Tok.GT, ">")); pos++; break;
+                case '(': push(new Token(Tok.LPAREN, "(")); pos++; break;
+                case ')': push(new Token(Tok.RPAREN, ")")); pos++; break;
+                case '{': push(new Token(Tok.LBRACE, "{")); pos++; break;
+                case '}': push(new Token(Tok.RBRACE, "}")); pos++; break;
+                case '[': push(new Token(Tok.LBRACKET, "[")); pos++; break;
+                case ']': push(new Token(Tok.RBRACKET, "]")); pos++; break;
+                case ',': push(new Token(Tok.COMMA, ",")); pos++; break;
+                case ';': push(new Token(Tok.SEMI, ";")); pos++; break;
                 default:
-                    throw new RuntimeException("Unknown char at pos " + pos + ": '" + c + "'");
+                    throw new RuntimeException("Unknown character '" + c + "'");
             }
         }
-        tokenQueue.push(new Token(Tok.END, ""));
+        tokStart = pos;
+        push(new Token(Tok.END, ""));
+    }
+
+    void push(Token t){
+        t.pos = tokStart;
+        tokenQueue.push(t);
+        tokens++;
     }
 
     /* ---------------------------
        AST Node definitions
        --------------------------- */
 
-    static abstract class AST {}
+    static abstract class AST { int pos = -1; }
     static abstract class Stmt extends AST {}
     static abstract class Expr extends AST {}
 
@@ -163,6 +208,9 @@ public class MiniInterpreter {
     static class IntLiteral extends Expr {
         long value; IntLiteral(long v){ value = v; }
     }
+    static class StrLiteral extends Expr {
+        String value; StrLiteral(String v){ value = v; }
+    }
     static class VarExpr extends Expr {
         String name; VarExpr(String n){ name = n; }
     }
@@ -172,8 +220,17 @@ public class MiniInterpreter {
     }
     static class CallExpr extends Expr {
         String fname; List<Expr> args;
+        Object table; // search table precompiled at link time for literal patterns
+        boolean builtin; // set at link time unless a user function of the same name exists
         CallExpr(String f, List<Expr> a){ fname=f; args=a; }
     }
+    static class IndexExpr extends Expr {
+        Expr array, index;
+        IndexExpr(Expr a, Expr i){ array=a; index=i; }
+    }
+    static class SpawnExpr extends Expr {
+        CallExpr call; SpawnExpr(CallExpr c){ call = c; }
+    }
 
     // Statements
     static class BlockStmt extends Stmt {
@@ -188,6 +245,7 @@ public class MiniInterpreter {
     }
     static class WhileStmt extends Stmt {
         Expr cond; Stmt body;
+        CountedLoop counted; // set at link time when the loop is provably counted
         WhileStmt(Expr c, Stmt b){ cond = c; body=b; }
     }
     static class ReturnStmt extends Stmt {
@@ -201,6 +259,15 @@ public class MiniInterpreter {
         String name; Expr expr;
         AssignStmt(String n, Expr e){ name=n; expr=e; }
     }
+    static class IndexAssignStmt extends Stmt {
+        Expr array, index, expr;
+        IndexAssignStmt(Expr a, Expr i, Expr e){ array=a; index=i; expr=e; }
+    }
+    // parfor (var = lo, hi) body -- iterations over [lo, hi) run in parallel
+    static class ParForStmt extends Stmt {
+        String var; Expr lo, hi; Stmt body;
+        ParForStmt(String v, Expr l, Expr h, Stmt b){ var=v; lo=l; hi=h; body=b; }
+    }
     static class FuncDef {
         String name;
         List<String> params;
@@ -212,22 +279,28 @@ public class MiniInterpreter {
        Parser (recursive-descent)
        --------------------------- */
 
-    static Token cur() { return tokenQueue.peek(); }
-    static Token eat() { return tokenQueue.pop(); }
-    static boolean accept(Tok t){
+    Token cur() { return tokenQueue.peek(); }
+    Token eat() { return tokenQueue.pop(); }
+    boolean accept(Tok t){
         if (cur().type == t){ eat(); return true; }
         return false;
     }
-    static void expect(Tok t){
+    void expect(Tok t){
         if (cur().type != t) throw new RuntimeException("Expected " + t + " but got " + cur());
         eat();
     }
+    // records the source position of a new node and counts it
+    <T extends AST> T at(T node, Token t){
+        node.pos = t.pos;
+        astNodes++;
+        return node;
+    }
 
-    static List<FuncDef> functions;
-    static BlockStmt programBody;
+    List<FuncDef> functions;
+    BlockStmt programBody;
 
-    static void parseProgram(){
-        programBody = new BlockStmt();
+    void parseProgram(){
+        programBody = at(new BlockStmt(), cur());
         while (cur().type != Tok.END) {
             if (cur().type == Tok.KW_FUNC) {
                 functions.add(parseFunc());
@@ -238,7 +311,7 @@ public class MiniInterpreter {
         }
     }
 
-    static FuncDef parseFunc(){
+    FuncDef parseFunc(){
         expect(Tok.KW_FUNC);
         if (cur().type != Tok.ID) throw new RuntimeException("Function name expected");
         String fname = eat().text;
@@ -255,9 +328,9 @@ public class MiniInterpreter {
         return new FuncDef(fname, params, body);
     }
 
-    static BlockStmt parseBlock(){
+    BlockStmt parseBlock(){
+        BlockStmt block = at(new BlockStmt(), cur());
         expect(Tok.LBRACE);
-        BlockStmt block = new BlockStmt();
         while (cur().type != Tok.RBRACE && cur().type != Tok.END){
             block.stmts.add(parseStmt());
         }
@@ -265,14 +338,14 @@ public class MiniInterpreter {
         return block;
     }
 
-    static Stmt parseStmt(){
+    Stmt parseStmt(){
         Token t = cur();
         // return
         if (t.type == Tok.KW_RETURN){
             eat();
             Expr e = parseExpr();
             expect(Tok.SEMI);
-            return new ReturnStmt(e);
+            return at(new ReturnStmt(e), t);
         }
         // if
         if (t.type == Tok.KW_IF){
@@ -286,7 +359,7 @@ public class MiniInterpreter {
                 eat();
                 elseB = parseStmtOrBlock();
             }
-            return new IfStmt(cond, thenB, elseB);
+            return at(new IfStmt(cond, thenB, elseB), t);
         }
         // while
         if (t.type == Tok.KW_WHILE){
@@ -295,7 +368,21 @@ public class MiniInterpreter {
             Expr cond = parseExpr();
             expect(Tok.RPAREN);
             Stmt body = parseStmtOrBlock();
-            return new WhileStmt(cond, body);
+            return at(new WhileStmt(cond, body), t);
+        }
+        // parfor
+        if (t.type == Tok.KW_PARFOR){
+            eat();
+            expect(Tok.LPAREN);
+            if (cur().type != Tok.ID) throw new RuntimeException("Loop variable expected after parfor");
+            String var = eat().text;
+            expect(Tok.ASSIGN);
+            Expr lo = parseExpr();
+            expect(Tok.COMMA);
+            Expr hi = parseExpr();
+            expect(Tok.RPAREN);
+            Stmt body = parseStmtOrBlock();
+            return at(new ParForStmt(var, lo, hi, body), t);
         }
         // block
         if (t.type == Tok.LBRACE) return parseBlock();
@@ -306,7 +393,7 @@ public class MiniInterpreter {
             Expr e = parseExpr();
             expect(Tok.RPAREN);
             expect(Tok.SEMI);
-            return new ExprStmt(new CallExpr("print", List.of(e)));
+            return at(new ExprStmt(at(new CallExpr("print", List.of(e)), t)), t);
         }
         // assignment or expression statement
         if (t.type == Tok.ID){
@@ -319,7 +406,7 @@ public class MiniInterpreter {
                 eat(); // =
                 Expr e = parseExpr();
                 expect(Tok.SEMI);
-                return new AssignStmt(idTok.text, e);
+                return at(new AssignStmt(idTok.text, e), t);
             } else if (nextTok.type == Tok.LPAREN){
                 // function call as statement
                 eat(); // id
@@ -331,80 +418,106 @@ public class MiniInterpreter {
                 }
                 expect(Tok.RPAREN);
                 expect(Tok.SEMI);
-                return new ExprStmt(new CallExpr(idTok.text, args));
+                return at(new ExprStmt(at(new CallExpr(idTok.text, args), t)), t);
             } else {
                 // treat as expression statement starting with ID (e.g., variable access as expression)
                 Expr e = parseExpr();
+                if (e instanceof IndexExpr && accept(Tok.ASSIGN)){
+                    // element store: a[i] = expr;
+                    IndexExpr ie = (IndexExpr)e;
+                    Expr val = parseExpr();
+                    expect(Tok.SEMI);
+                    return at(new IndexAssignStmt(ie.array, ie.index, val), t);
+                }
                 expect(Tok.SEMI);
-                return new ExprStmt(e);
+                return at(new ExprStmt(e), t);
             }
         }
         // expression statement
         Expr e = parseExpr();
         expect(Tok.SEMI);
-        return new ExprStmt(e);
+        return at(new ExprStmt(e), t);
     }
 
-    static Stmt parseStmtOrBlock(){
+    Stmt parseStmtOrBlock(){
         if (cur().type == Tok.LBRACE) return parseBlock();
         return parseStmt();
     }
 
     // Expression parsing with precedence
-    static Expr parseExpr(){ return parseEquality(); }
+    Expr parseExpr(){ return parseEquality(); }
 
-    static Expr parseEquality(){
+    Expr parseEquality(){
         Expr left = parseRelational();
         while (cur().type == Tok.EQ || cur().type == Tok.NEQ){
-            String op = eat().text;
+            Token op = eat();
             Expr right = parseRelational();
-            left = new BinaryExpr(op, left, right);
+            left = at(new BinaryExpr(op.text, left, right), op);
         }
         return left;
     }
 
-    static Expr parseRelational(){
+    Expr parseRelational(){
         Expr left = parseAddSub();
         while (cur().type == Tok.LT || cur().type == Tok.LTE || cur().type == Tok.GT || cur().type == Tok.GTE){
-            String op = eat().text;
+            Token op = eat();
             Expr right = parseAddSub();
-            left = new BinaryExpr(op, left, right);
+            left = at(new BinaryExpr(op.text, left, right), op);
         }
         return left;
     }
 
-    static Expr parseAddSub(){
+    Expr parseAddSub(){
         Expr left = parseMulDiv();
         while (cur().type == Tok.PLUS || cur().type == Tok.MINUS){
-            String op = eat().text;
+            Token op = eat();
             Expr right = parseMulDiv();
-            left = new BinaryExpr(op, left, right);
+            left = at(new BinaryExpr(op.text, left, right), op);
         }
         return left;
     }
 
-    static Expr parseMulDiv(){
+    Expr parseMulDiv(){
         Expr left = parseUnary();
         while (cur().type == Tok.MUL || cur().type == Tok.DIV || cur().type == Tok.MOD){
-            String op = eat().text;
+            Token op = eat();
             Expr right = parseUnary();
-            left = new BinaryExpr(op, left, right);
+            left = at(new BinaryExpr(op.text, left, right), op);
         }
         return left;
     }
 
-    static Expr parseUnary(){
+    Expr parseUnary(){
         if (cur().type == Tok.MINUS){
-            eat();
+            Token t = eat();
             Expr p = parseUnary();
-            return new BinaryExpr("neg", new IntLiteral(0), p);
+            return at(new BinaryExpr("neg", at(new IntLiteral(0), t), p), t);
         }
         return parsePrimary();
     }
 
-    static Expr parsePrimary(){
+    Expr parsePrimary(){
+        Expr e = parseAtom();
+        // postfix indexing: a[i], f(x)[i]
+        while (cur().type == Tok.LBRACKET){
+            Token t = eat();
+            Expr idx = parseExpr();
+            expect(Tok.RBRACKET);
+            e = at(new IndexExpr(e, idx), t);
+        }
+        return e;
+    }
+
+    Expr parseAtom(){
         Token t = cur();
-        if (t.type == Tok.INT){ eat(); return new IntLiteral(t.intVal); }
+        if (t.type == Tok.INT){ eat(); return at(new IntLiteral(t.intVal), t); }
+        if (t.type == Tok.STR){ eat(); return at(new StrLiteral(t.text), t); }
+        if (t.type == Tok.KW_SPAWN){
+            eat();
+            Expr call = parseAtom();
+            if (!(call instanceof CallExpr)) throw new RuntimeException("spawn expects a function call");
+            return at(new SpawnExpr((CallExpr)call), t);
+        }
         if (t.type == Tok.ID){
             String name = eat().text;
             if (cur().type == Tok.LPAREN){
@@ -416,9 +529,9 @@ public class MiniInterpreter {
                     while (accept(Tok.COMMA)) args.add(parseExpr());
                 }
                 expect(Tok.RPAREN);
-                return new CallExpr(name, args);
+                return at(new CallExpr(name, args), t);
             } else {
-                return new VarExpr(name);
+                return at(new VarExpr(name), t);
             }
         }
         if (t.type == Tok.LPAREN){
@@ -439,76 +552,298 @@ public class MiniInterpreter {
         enum Kind { VAR, FUNC }
         Kind kind;
         String name;
-        Object info; // for VAR -> value boxed Long, for FUNC -> FuncDef
+        Object info; // for VAR -> value (Long, String, long[] or SpawnTask), for FUNC -> FuncDef
         Symbol(Kind k, String n, Object i){ kind=k; name=n; info=i; }
     }
 
-    // Global symbol table (hash map)
-    static HashMap<String, Symbol> globalSym;
+    // Global symbol table (hash map), shared with parallel tasks
+    Map<String, Symbol> globalSym;
 
     // Activation Record representing a function call's local scope & return info
     static class ActivationRecord {
         String funcName;
-        HashMap<String, Long> locals = new HashMap<>();
+        HashMap<String, Object> locals = new HashMap<>();
         ActivationRecord(String f){ funcName = f; }
     }
 
-    // Call stack of activation records
-    static Deque<ActivationRecord> callStack;
+    // Call stack of activation records (private to this interpreter / task)
+    Deque<ActivationRecord> callStack;
+
+    /* ---------------------------
+       Parallel tasks (parfor / spawn / join)
+       --------------------------- */
+
+    // Worker pool for parfor and spawn; size with -Dmini.parallelism=N
+    static final ForkJoinPool TASK_POOL =
+            new ForkJoinPool(Integer.getInteger("mini.parallelism", Runtime.getRuntime().availableProcessors()));
+
+    // true for interpreters running inside a task: globals are read-only there
+    boolean parallel;
+    // the task's own bottom record; records below it belong to the forking interpreter and are read-only
+    ActivationRecord taskBase;
+    // tasks started with spawn, awaited before the run finishes
+    Queue<SpawnTask> spawned;
+    // the interpreter that owns the run; task counters are folded into it
+    MiniInterpreter root;
+
+    // output channels, shared with tasks
+    StringBuilder out = new StringBuilder();
+    StringBuilder err = new StringBuilder();
+
+    // set from another thread to stop the run at the next safepoint
+    volatile boolean cancelled;
+    // loop back-edges and function entries ("ticks") between safepoints
+    long quantum = 1024;
+    long fuel = quantum;
+    long sliceTicks = quantum; // fuel handed out at the last safepoint
+    // called at each safepoint, e.g. to yield to a ScriptScheduler; task interpreters only inherit it with inlineTasks
+    Runnable yieldHook;
+    // run parfor/spawn on the calling thread instead of TASK_POOL, so a scheduled context's tasks
+    // stay inside its slices (they inherit yieldHook)
+    boolean inlineTasks;
+    // receives each printed line as it is produced, instead of out (called under the output lock)
+    Consumer<String> outputListener;
+
+    // --- budgets (see Limits), copied into task interpreters
+    long maxInstructions = Long.MAX_VALUE;
+    int maxCallDepth = Integer.MAX_VALUE;
+    long maxOutputBytes = Long.MAX_VALUE;
+    long timeoutNanos;
+    long deadline; // System.nanoTime() value, 0 for none
+    // ticks charged at safepoints by the whole run (root's counter is the shared one)
+    final AtomicLong ticks = new AtomicLong();
+    // UTF-8 bytes printed by the whole run (root's counter, guarded by out)
+    long outBytes;
+
+    // --- counters reported in RunResult
+    long tokens, astNodes, statements, calls;
+    // statements as of the last safepoint, for readers on other threads (statements itself is unsynchronized)
+    volatile long publishedStatements;
+    int peakDepth;
+    // totals from finished tasks (only touched under absorb's lock)
+    long taskStatements, taskCalls;
+    int taskPeakDepth;
+
+    public MiniInterpreter(String source){
+        src = source == null ? "" : source;
+        functions = new ArrayList<>();
+        globalSym = new ConcurrentHashMap<>();
+        callStack = new ArrayDeque<>();
+        spawned = new ConcurrentLinkedQueue<>();
+        root = this;
+    }
+
+    // Child interpreter for a task: shares program and globals, owns its call stack.
+    // parfor children also see the parent's records (the parent is blocked meanwhile).
+    MiniInterpreter(MiniInterpreter parent, boolean inheritFrames){
+        src = parent.src;
+        functions = parent.functions;
+        programBody = parent.programBody;
+        globalSym = parent.globalSym;
+        spawned = parent.spawned;
+        root = parent.root;
+        out = parent.out;
+        err = parent.err;
+        outputListener = parent.outputListener;
+        quantum = parent.quantum;
+        inlineTasks = parent.inlineTasks;
+        if (inlineTasks) yieldHook = parent.yieldHook;
+        maxInstructions = parent.maxInstructions;
+        maxCallDepth = parent.maxCallDepth;
+        maxOutputBytes = parent.maxOutputBytes;
+        deadline = parent.deadline;
+        sliceTicks = fuel = Math.min(quantum, Math.max(0, maxInstructions - root.ticks.get()));
+        callStack = inheritFrames ? new ArrayDeque<>(parent.callStack) : new ArrayDeque<>();
+        parallel = true;
+    }
+
+    // Tasks only check the shared budget at their own safepoints, so a task can finish its slice
+    // over budget; absorb adds that unchecked remainder and the forking side re-checks on resume.
+    synchronized void absorb(MiniInterpreter task){
+        ticks.addAndGet(task.sliceTicks - task.fuel);
+        taskStatements += task.statements + task.taskStatements;
+        taskCalls += task.calls + task.taskCalls;
+        taskPeakDepth = Math.max(taskPeakDepth, Math.max(task.peakDepth, task.taskPeakDepth));
+    }
+
+    void enterTask(ActivationRecord base){
+        taskBase = base;
+        callStack.push(base);
+    }
+
+    // Handle returned by spawn; errors are kept here so join can rethrow them unchanged
+    static class SpawnTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        final MiniInterpreter interp;
+        final FuncDef fd;
+        final List<Object> args;
+        Object result;
+        RuntimeException error;
+        SpawnTask(MiniInterpreter interp, FuncDef fd, List<Object> args){ this.interp=interp; this.fd=fd; this.args=args; }
+        protected void compute(){
+            try {
+                interp.enterTask(new ActivationRecord("task"));
+                result = interp.invoke(fd, args);
+            } catch (RuntimeException ex){
+                error = ex;
+            } finally {
+                interp.root.absorb(interp);
+            }
+        }
+        Object await(){
+            join();
+            if (error != null) throw error;
+            return result;
+        }
+    }
+
+    // Splits [lo, hi) until a chunk is small enough, then runs it on one child interpreter
+    static class ParForTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        final MiniInterpreter parent;
+        final ParForStmt pf;
+        final long lo, hi, grain;
+        final AtomicReference<RuntimeException> error;
+        ParForTask(MiniInterpreter parent, ParForStmt pf, long lo, long hi, long grain, AtomicReference<RuntimeException> error){
+            this.parent=parent; this.pf=pf; this.lo=lo; this.hi=hi; this.grain=grain; this.error=error;
+        }
+        protected void compute(){
+            if (hi - lo > grain){
+                long mid = lo + (hi - lo) / 2;
+                invokeAll(new ParForTask(parent, pf, lo, mid, grain, error),
+                          new ParForTask(parent, pf, mid, hi, grain, error));
+                return;
+            }
+            MiniInterpreter child = new MiniInterpreter(parent, true);
+            for (long i = lo; i < hi && error.get() == null; i++){
+                // fresh activation record per iteration holds the loop variable and any new names
+                ActivationRecord ar = new ActivationRecord("parfor");
+                ar.locals.put(pf.var, i);
+                child.enterTask(ar);
+                try {
+                    child.checkpoint();
+                    child.execStmt(pf.body);
+                } catch (ReturnException re){
+                    error.compareAndSet(null, new RuntimeException("return is not allowed inside parfor"));
+                } catch (RuntimeException ex){
+                    error.compareAndSet(null, ex);
+                }
+                child.callStack.pop();
+            }
+            parent.root.absorb(child);
+        }
+    }
+
+    void execParFor(ParForStmt pf){
+        long lo = asLong(evalExpr(pf.lo));
+        long hi = asLong(evalExpr(pf.hi));
+        if (lo >= hi) return;
+        AtomicReference<RuntimeException> error = new AtomicReference<>();
+        if (inlineTasks){
+            // one chunk, so invoke() never forks
+            new ParForTask(this, pf, lo, hi, hi - lo, error).invoke();
+        } else {
+            long grain = Math.max(1, (hi - lo) / (TASK_POOL.getParallelism() * 8L));
+            TASK_POOL.invoke(new ParForTask(this, pf, lo, hi, grain, error));
+        }
+        if (error.get() != null) throw error.get();
+        checkAbsorbedTicks();
+    }
+
+    Object spawn(CallExpr ce){
+        FuncDef fd = resolveFunc(ce);
+        // arguments are evaluated by the spawner; the task only sees them and the globals
+        List<Object> args = new ArrayList<>(ce.args.size());
+        for (Expr a : ce.args) args.add(evalExpr(a));
+        SpawnTask task = new SpawnTask(new MiniInterpreter(this, false), fd, args);
+        spawned.add(task);
+        if (inlineTasks) task.invoke(); // runs to completion now; join just returns the result
+        else TASK_POOL.execute(task);
+        return task;
+    }
+
+    // Waits for every spawned task, even after one fails; the first failure is rethrown once all are done
+    void awaitSpawned(){
+        RuntimeException first = null;
+        SpawnTask t;
+        while ((t = spawned.poll()) != null){
+            try {
+                t.await();
+            } catch (RuntimeException ex){
+                // the run has failed: stop the remaining tasks at their next safepoint
+                if (first == null){ first = ex; cancelled = true; }
+            }
+        }
+        if (first != null) throw first;
+    }
 
     // A runtime exception used to implement 'return' flow control with a value
     static class ReturnException extends RuntimeException {
-        Long value;
-        ReturnException(Long v){ value = v; }
+        private static final long serialVersionUID = 1L;
+        Object value;
+        ReturnException(Object v){ value = v; }
     }
 
-    static Long evalExpr(Expr e){
+    // Runtime values are Long (scalars), String, long[] (arrays, shared by reference) or SpawnTask
+    static long asLong(Object v){
+        if (v instanceof Long) return (Long)v;
+        throw new RuntimeException("Expected integer but got " + typeName(v));
+    }
+    static String asString(Object v){
+        if (v instanceof String) return (String)v;
+        throw new RuntimeException("Expected string but got " + typeName(v));
+    }
+    static long[] asArray(Object v){
+        if (v instanceof long[]) return (long[])v;
+        throw new RuntimeException("Expected array but got " + typeName(v));
+    }
+    static String typeName(Object v){
+        if (v instanceof long[]) return "array";
+        if (v instanceof SpawnTask) return "task";
+        if (v instanceof String) return "string";
+        return "integer";
+    }
+    static String show(Object v){
+        if (v instanceof long[]) return Arrays.toString((long[])v);
+        if (v instanceof SpawnTask) return "<task>";
+        return String.valueOf(v);
+    }
+    static int checkIndex(long[] a, long i){
+        if (i < 0 || i >= a.length) throw new RuntimeException("Array index out of bounds: " + i + " (length " + a.length + ")");
+        return (int)i;
+    }
+
+    Object evalExpr(Expr e){
         if (e instanceof IntLiteral) return ((IntLiteral)e).value;
+        if (e instanceof StrLiteral) return ((StrLiteral)e).value;
         if (e instanceof VarExpr){
             String name = ((VarExpr)e).name;
-            Long val = lookupVar(name);
+            Object val = lookupVar(name);
             if (val == null) throw new RuntimeException("Undefined variable: " + name);
             return val;
         }
         if (e instanceof BinaryExpr){
             BinaryExpr be = (BinaryExpr)e;
-            Long L = evalExpr(be.left);
-            Long R = evalExpr(be.right);
-            switch(be.op){
-                case "+": return L + R;
-                case "-": return L - R;
-                case "*": return L * R;
-                case "/": if (R==0) throw new RuntimeException("Division by zero"); return L / R;
-                case "%": return L % R;
-                case "==": return (L.equals(R))?1L:0L;
-                case "!=": return (!L.equals(R))?1L:0L;
-                case "<": return (L < R)?1L:0L;
-                case "<=": return (L <= R)?1L:0L;
-                case ">": return (L > R)?1L:0L;
-                case ">=": return (L >= R)?1L:0L;
-                case "neg": return -R;
-                default: throw new RuntimeException("Unknown binary op: " + be.op);
-            }
+            Object lv = evalExpr(be.left);
+            Object rv = evalExpr(be.right);
+            return binop(be.op, lv, rv);
+        }
+        if (e instanceof IndexExpr){
+            IndexExpr ie = (IndexExpr)e;
+            long[] a = asArray(evalExpr(ie.array));
+            return a[checkIndex(a, asLong(evalExpr(ie.index)))];
         }
         if (e instanceof CallExpr){
             CallExpr ce = (CallExpr)e;
-            if (ce.fname.equals("print")){
-                if (ce.args.size() != 1) throw new RuntimeException("print takes 1 argument");
-                Long v = evalExpr(ce.args.get(0));
-                System.out.println(v);
-                return 0L;
-            }
-            Symbol sym = globalSym.get(ce.fname);
-            if (sym == null || sym.kind != Symbol.Kind.FUNC) throw new RuntimeException("Unknown function: " + ce.fname);
-            FuncDef fd = (FuncDef) sym.info;
-            if (fd.params.size() != ce.args.size()) throw new RuntimeException("Arity mismatch for " + ce.fname);
-            // prepare activation record
-            ActivationRecord ar = new ActivationRecord(ce.fname);
-            for (int i=0;i<fd.params.size();i++){
-                Long argVal = evalExpr(ce.args.get(i));
-                ar.locals.put(fd.params.get(i), argVal);
-            }
+            if (ce.builtin) return callBuiltin(ce);
+            FuncDef fd = resolveFunc(ce);
+            ActivationRecord ar = bindArgs(fd, ce);
+            // callFunction inlined: one Java frame less per script call keeps recursion depth near baseline
+            if (--fuel <= 0 || root.cancelled) safepoint();
+            if (callStack.size() >= maxCallDepth) throw new BudgetExceeded(BudgetExceeded.Limit.CALL_DEPTH, maxCallDepth);
             callStack.push(ar);
+            calls++;
+            if (callStack.size() > peakDepth) peakDepth = callStack.size();
             try {
                 execBlock(fd.body);
             } catch (ReturnException re){
@@ -518,62 +853,747 @@ public class MiniInterpreter {
             callStack.pop();
             return 0L;
         }
+        if (e instanceof SpawnExpr) return spawn(((SpawnExpr)e).call);
         throw new RuntimeException("Unknown expr type: " + e);
     }
 
-    static Long lookupVar(String name){
+    // Operators on already-evaluated operands; kept out of evalExpr so its recursive frame stays small
+    Object binop(String op, Object lv, Object rv){
+        if (!(lv instanceof Long && rv instanceof Long)){
+            if (op.equals("+") && (lv instanceof String || rv instanceof String)){
+                // string concatenation, charged before the result is built
+                String ls = show(lv), rs = show(rv);
+                chargeWork((long) ls.length() + rs.length());
+                return ls + rs;
+            }
+            return evalMixed(op, lv, rv);
+        }
+        long L = (Long)lv;
+        long R = (Long)rv;
+        switch(op){
+            case "+": return L + R;
+            case "-": return L - R;
+            case "*": return L * R;
+            case "/": if (R==0) throw new RuntimeException("Division by zero"); return L / R;
+            case "%": return L % R;
+            case "==": return (L == R)?1L:0L;
+            case "!=": return (L != R)?1L:0L;
+            case "<": return (L < R)?1L:0L;
+            case "<=": return (L <= R)?1L:0L;
+            case ">": return (L > R)?1L:0L;
+            case ">=": return (L >= R)?1L:0L;
+            case "neg": return -R;
+            default: throw new RuntimeException("Unknown binary op: " + op);
+        }
+    }
+
+    // Binary operators on non-integer operands other than concatenation: equality and ordering
+    static Object evalMixed(String op, Object L, Object R){
+        if (op.equals("==")) return Objects.equals(L, R) ? 1L : 0L;
+        if (op.equals("!=")) return Objects.equals(L, R) ? 0L : 1L;
+        if (L instanceof String && R instanceof String){
+            int c = ((String)L).compareTo((String)R);
+            switch(op){
+                case "<": return c < 0 ? 1L : 0L;
+                case "<=": return c <= 0 ? 1L : 0L;
+                case ">": return c > 0 ? 1L : 0L;
+                case ">=": return c >= 0 ? 1L : 0L;
+            }
+        }
+        throw new RuntimeException("Operator " + op + " not supported for " + typeName(L) + " and " + typeName(R));
+    }
+
+    FuncDef resolveFunc(CallExpr ce){
+        Symbol sym = globalSym.get(ce.fname);
+        if (sym == null || sym.kind != Symbol.Kind.FUNC) throw new RuntimeException("Unknown function: " + ce.fname);
+        FuncDef fd = (FuncDef) sym.info;
+        if (fd.params.size() != ce.args.size()) throw new RuntimeException("Arity mismatch for " + ce.fname);
+        return fd;
+    }
+
+    // prepare activation record
+    ActivationRecord bindArgs(FuncDef fd, CallExpr ce){
+        ActivationRecord ar = new ActivationRecord(ce.fname);
+        for (int i=0;i<fd.params.size();i++){
+            Object argVal = evalExpr(ce.args.get(i));
+            ar.locals.put(fd.params.get(i), argVal);
+        }
+        return ar;
+    }
+
+    // Call with already-evaluated arguments (used by spawned tasks)
+    Object invoke(FuncDef fd, List<Object> args){
+        ActivationRecord ar = new ActivationRecord(fd.name);
+        for (int i=0;i<fd.params.size();i++) ar.locals.put(fd.params.get(i), args.get(i));
+        return callFunction(fd, ar);
+    }
+
+    // Call sequence for tasks; evalExpr has its own inlined copy
+    Object callFunction(FuncDef fd, ActivationRecord ar){
+        checkpoint();
+        if (callStack.size() >= maxCallDepth) throw new BudgetExceeded(BudgetExceeded.Limit.CALL_DEPTH, maxCallDepth);
+        callStack.push(ar);
+        calls++;
+        if (callStack.size() > peakDepth) peakDepth = callStack.size();
+        try {
+            execBlock(fd.body);
+        } catch (ReturnException re){
+            callStack.pop();
+            return re.value == null ? 0L : re.value;
+        }
+        callStack.pop();
+        return 0L;
+    }
+
+    static void expectArgs(CallExpr ce, int min, int max){
+        int n = ce.args.size();
+        if (n < min || n > max)
+            throw new RuntimeException(ce.fname + " takes " + (min == max ? "" + min : min + ".." + max) + " argument" + (max == 1 ? "" : "s"));
+    }
+
+    // Built-ins run natively; only reached for calls linked as built-in (see link)
+    Object callBuiltin(CallExpr ce){
+        switch(ce.fname){
+            case "print": {
+                if (ce.args.size() != 1) throw new RuntimeException("print takes 1 argument");
+                Object v = evalExpr(ce.args.get(0));
+                println(show(v));
+                return 0L;
+            }
+            case "array": {
+                expectArgs(ce, 1, 1);
+                long n = asLong(evalExpr(ce.args.get(0)));
+                if (n < 0 || n > Integer.MAX_VALUE - 8) throw new RuntimeException("Invalid array size: " + n);
+                chargeWork(n);
+                return allocate((int)n);
+            }
+            case "len": {
+                expectArgs(ce, 1, 1);
+                Object v = evalExpr(ce.args.get(0));
+                if (v instanceof String) return (long) ((String)v).length();
+                return (long) asArray(v).length;
+            }
+            case "fill": {
+                expectArgs(ce, 2, 2);
+                long[] a = asArray(evalExpr(ce.args.get(0)));
+                long v = asLong(evalExpr(ce.args.get(1)));
+                chargeWork(a.length);
+                Arrays.fill(a, v);
+                return 0L;
+            }
+            case "sum": {
+                expectArgs(ce, 1, 1);
+                long[] a = asArray(evalExpr(ce.args.get(0)));
+                chargeWork(a.length);
+                long s = 0;
+                for (long v : a) s += v;
+                return s;
+            }
+            case "sort": {
+                expectArgs(ce, 1, 1);
+                long[] a = asArray(evalExpr(ce.args.get(0)));
+                chargeWork(a.length);
+                Arrays.sort(a);
+                return 0L;
+            }
+            case "copy": {
+                // copy(a) or copy(a, from, to) with 'to' exclusive
+                expectArgs(ce, 1, 3);
+                if (ce.args.size() == 2) throw new RuntimeException("copy takes 1 or 3 arguments");
+                long[] a = asArray(evalExpr(ce.args.get(0)));
+                long from = ce.args.size() == 1 ? 0 : asLong(evalExpr(ce.args.get(1)));
+                long to = ce.args.size() == 1 ? a.length : asLong(evalExpr(ce.args.get(2)));
+                if (from < 0 || to > a.length || from > to)
+                    throw new RuntimeException("Invalid copy range [" + from + ", " + to + ") for length " + a.length);
+                chargeWork(to - from);
+                long[] c = allocate((int)(to - from));
+                System.arraycopy(a, (int)from, c, 0, c.length);
+                return c;
+            }
+            case "join": {
+                expectArgs(ce, 1, 1);
+                Object t = evalExpr(ce.args.get(0));
+                if (!(t instanceof SpawnTask)) throw new RuntimeException("Expected task but got " + typeName(t));
+                Object v = ((SpawnTask)t).await();
+                checkAbsorbedTicks();
+                return v;
+            }
+            case "find": {
+                // find(s, pat) or find(s, pat, from): index of the first match, or -1
+                expectArgs(ce, 2, 3);
+                String text = asString(evalExpr(ce.args.get(0)));
+                KmpTable k = kmpTable(ce, evalExpr(ce.args.get(1)));
+                long from = ce.args.size() == 3 ? asLong(evalExpr(ce.args.get(2))) : 0;
+                if (from < 0 || from > text.length()) return -1L;
+                chargeWork(text.length() - from);
+                return (long) k.find(text, (int)from);
+            }
+            case "count": {
+                // non-overlapping occurrences
+                expectArgs(ce, 2, 2);
+                String text = asString(evalExpr(ce.args.get(0)));
+                KmpTable k = kmpTable(ce, evalExpr(ce.args.get(1)));
+                if (k.pat.isEmpty()) throw new RuntimeException("count: empty pattern");
+                chargeWork(text.length());
+                long n = 0;
+                for (int i = k.find(text, 0); i >= 0; i = k.find(text, i + k.pat.length())) n++;
+                return n;
+            }
+            case "replace": {
+                // replace(s, pat, rep): every non-overlapping occurrence, left to right
+                expectArgs(ce, 3, 3);
+                String text = asString(evalExpr(ce.args.get(0)));
+                KmpTable k = kmpTable(ce, evalExpr(ce.args.get(1)));
+                String rep = asString(evalExpr(ce.args.get(2)));
+                if (k.pat.isEmpty()) throw new RuntimeException("replace: empty pattern");
+                chargeWork(text.length());
+                int i = k.find(text, 0);
+                if (i < 0) return text;
+                StringBuilder sb = new StringBuilder(text.length());
+                int last = 0;
+                for (; i >= 0; i = k.find(text, last)){
+                    sb.append(text, last, i).append(rep);
+                    last = i + k.pat.length();
+                }
+                return sb.append(text, last, text.length()).toString();
+            }
+            case "findany":
+            case "countany": {
+                // findany(s, p1, p2, ...): leftmost start of any pattern, or -1
+                // countany(s, p1, p2, ...): non-overlapping matches of any pattern, as count does for one
+                if (ce.args.size() < 2) throw new RuntimeException(ce.fname + " takes a string and at least one pattern");
+                String text = asString(evalExpr(ce.args.get(0)));
+                AhoCorasick ac = automaton(ce);
+                chargeWork(text.length());
+                return ce.fname.equals("findany") ? (long) ac.findFirst(text) : ac.count(text);
+            }
+            case "binsearch": {
+                // expects a sorted array; returns index, or -(insertion point) - 1 when absent
+                expectArgs(ce, 2, 2);
+                long[] a = asArray(evalExpr(ce.args.get(0)));
+                return (long) Arrays.binarySearch(a, asLong(evalExpr(ce.args.get(1))));
+            }
+            default: throw new RuntimeException("Unknown built-in: " + ce.fname);
+        }
+    }
+
+    // a script asking for more memory than the heap has gets a runtime error, not a host crash
+    static long[] allocate(int n){
+        try {
+            return new long[n];
+        } catch (OutOfMemoryError oom){
+            throw new RuntimeException("Out of memory allocating array of " + n + " elements");
+        }
+    }
+
+    // KMP failure table for a single pattern
+    static final class KmpTable {
+        final String pat;
+        final int[] lps;
+        KmpTable(String pat){ this.pat = pat; lps = kmpBuild(pat); }
+        int find(String text, int from){ return kmpFind(text, pat, lps, from); }
+    }
+
+    // Aho-Corasick automaton over a fixed set of patterns
+    static final class AhoCorasick {
+        final List<Map<Character, Integer>> next = new ArrayList<>();
+        int[] fail;
+        int[] outLen;   // length of the longest pattern ending at this node, 0 if none
+        int[] dictLink; // nearest node on the failure chain with an output, -1 if none
+        int maxLen;
+
+        AhoCorasick(List<String> pats){
+            next.add(new HashMap<>());
+            List<Integer> ends = new ArrayList<>(List.of(0));
+            for (String p : pats){
+                if (p.isEmpty()) throw new RuntimeException("Empty search pattern");
+                int node = 0;
+                for (int i = 0; i < p.length(); i++){
+                    Integer nx = next.get(node).get(p.charAt(i));
+                    if (nx == null){
+                        nx = next.size();
+                        next.add(new HashMap<>());
+                        ends.add(0);
+                        next.get(node).put(p.charAt(i), nx);
+                    }
+                    node = nx;
+                }
+                ends.set(node, Math.max(ends.get(node), p.length()));
+                maxLen = Math.max(maxLen, p.length());
+            }
+            int n = next.size();
+            fail = new int[n];
+            outLen = new int[n];
+            dictLink = new int[n];
+            for (int i = 0; i < n; i++) outLen[i] = ends.get(i);
+            dictLink[0] = -1;
+            // BFS so a node's failure target is finished before the node itself
+            ArrayDeque<Integer> queue = new ArrayDeque<>();
+            for (int child : next.get(0).values()){ fail[child] = 0; dictLink[child] = -1; queue.add(child); }
+            while (!queue.isEmpty()){
+                int u = queue.poll();
+                for (Map.Entry<Character, Integer> en : next.get(u).entrySet()){
+                    int v = en.getValue();
+                    fail[v] = step(fail[u], en.getKey());
+                    dictLink[v] = outLen[fail[v]] > 0 ? fail[v] : dictLink[fail[v]];
+                    queue.add(v);
+                }
+            }
+        }
+
+        int step(int node, char c){
+            while (true){
+                Integer nx = next.get(node).get(c);
+                if (nx != null) return nx;
+                if (node == 0) return 0;
+                node = fail[node];
+            }
+        }
+
+        int findFirst(String text){
+            int node = 0, best = -1;
+            for (int i = 0; i < text.length(); i++){
+                // no later match can start before best
+                if (best >= 0 && i - maxLen + 1 > best) break;
+                node = step(node, text.charAt(i));
+                for (int o = outLen[node] > 0 ? node : dictLink[node]; o > 0; o = dictLink[o]){
+                    int start = i - outLen[o] + 1;
+                    if (best < 0 || start < best) best = start;
+                }
+            }
+            return best;
+        }
+
+        long count(String text){
+            // non-overlapping, like count(): take the match that ends first and restart after it
+            int node = 0;
+            long n = 0;
+            for (int i = 0; i < text.length(); i++){
+                node = step(node, text.charAt(i));
+                if (outLen[node] > 0 || dictLink[node] > 0){ n++; node = 0; }
+            }
+            return n;
+        }
+    }
+
+    // patterns that are not literals are compiled on first use and kept per run
+    final Map<String, KmpTable> patternCache = new ConcurrentHashMap<>();
+    final Map<List<String>, AhoCorasick> automatonCache = new ConcurrentHashMap<>();
+
+    KmpTable kmpTable(CallExpr ce, Object pat){
+        if (ce.table != null) return (KmpTable) ce.table;
+        String p = asString(pat);
+        if (patternCache.size() > 256) patternCache.clear();
+        return patternCache.computeIfAbsent(p, KmpTable::new);
+    }
+
+    AhoCorasick automaton(CallExpr ce){
+        if (ce.table != null) return (AhoCorasick) ce.table;
+        List<String> pats = new ArrayList<>(ce.args.size() - 1);
+        for (int i = 1; i < ce.args.size(); i++) pats.add(asString(evalExpr(ce.args.get(i))));
+        if (automatonCache.size() > 256) automatonCache.clear();
+        return automatonCache.computeIfAbsent(pats, AhoCorasick::new);
+    }
+
+    Object lookupVar(String name){
         // check local activation records top-down
         for (ActivationRecord ar : callStack) {
             if (ar.locals.containsKey(name)) return ar.locals.get(name);
         }
         // then globals
         Symbol sym = globalSym.get(name);
-        if (sym != null && sym.kind == Symbol.Kind.VAR) return (Long)sym.info;
+        if (sym != null && sym.kind == Symbol.Kind.VAR) return sym.info;
         return null;
     }
 
-    static void assignVar(String name, Long value){
+    void assignVar(String name, Object value){
         // assign to nearest local; if none exist, create global
+        boolean shared = false;
         for (ActivationRecord ar : callStack) {
             if (ar.locals.containsKey(name)){
+                if (shared) throw new RuntimeException("Cannot assign outer variable '" + name + "' inside a parallel task");
                 ar.locals.put(name, value);
                 return;
             }
+            if (ar == taskBase) shared = true;
+        }
+        if (parallel){
+            // tasks never write globals: whether or not the name exists yet (a function called earlier
+            // may have leaked it), it becomes a local of the current function's record
+            callStack.peek().locals.put(name, value);
+            return;
         }
         // global
         globalSym.put(name, new Symbol(Symbol.Kind.VAR, name, value));
     }
 
-    static void execStmt(Stmt s){
-        if (s instanceof BlockStmt) execBlock((BlockStmt)s);
-        else if (s instanceof ExprStmt) evalExpr(((ExprStmt)s).expr);
-        else if (s instanceof IfStmt){
-            IfStmt is = (IfStmt)s;
-            Long cond = evalExpr(is.cond);
-            if (cond != 0) execStmt(is.thenBranch);
-            else if (is.elseBranch != null) execStmt(is.elseBranch);
-        } else if (s instanceof WhileStmt){
-            WhileStmt ws = (WhileStmt)s;
-            while (evalExpr(ws.cond) != 0) execStmt(ws.body);
-        } else if (s instanceof ReturnStmt){
-            ReturnStmt rs = (ReturnStmt)s;
-            Long val = rs.expr == null ? 0L : evalExpr(rs.expr);
-            throw new ReturnException(val);
-        } else if (s instanceof AssignStmt){
-            AssignStmt as = (AssignStmt)s;
-            Long val = evalExpr(as.expr);
-            assignVar(as.name, val);
-        } else {
-            throw new RuntimeException("Unsupported stmt execution: " + s);
+    void println(String line){
+        synchronized (out){
+            if (maxOutputBytes != Long.MAX_VALUE){
+                root.outBytes += utf8Length(line) + 1;
+                if (root.outBytes > maxOutputBytes) throw new BudgetExceeded(BudgetExceeded.Limit.OUTPUT_BYTES, maxOutputBytes);
+            }
+            // with a listener the caller keeps the output; a second copy here would only grow
+            if (outputListener != null) outputListener.accept(line);
+            else out.append(line).append('\n');
+        }
+    }
+
+    // Tick at loop back-edges and function entry; every quantum ticks reach a safepoint.
+    // Cancellation is also polled here so a few slow iterations can't hold off cancel() for a whole quantum.
+    void checkpoint(){
+        if (--fuel <= 0 || root.cancelled) safepoint();
+    }
+
+    // Native built-ins cost a tick per 1024 elements or chars, charged before the work so the
+    // instruction budget trips first; the deadline is checked too, as one call can run for long
+    void chargeWork(long n){
+        fuel -= n >> 10;
+        if (fuel <= 0 || (deadline != 0 && System.nanoTime() - deadline > 0)) safepoint();
+    }
+
+    static long utf8Length(String s){
+        long n = 0;
+        for (int i = 0; i < s.length(); i++){
+            char c = s.charAt(i);
+            if (c < 0x80) n++;
+            else if (c < 0x800) n += 2;
+            else if (Character.isHighSurrogate(c)){ n += 4; i++; }
+            else n += 3;
         }
+        return n;
+    }
+
+    // Cooperative yield, interruption and budget point: charges the slice, then hands out the next one
+    void safepoint(){
+        long used = root.ticks.addAndGet(sliceTicks - fuel);
+        sliceTicks = fuel = Math.max(0, Math.min(quantum, maxInstructions - used));
+        if (used > maxInstructions) throw new BudgetExceeded(BudgetExceeded.Limit.INSTRUCTIONS, maxInstructions);
+        if (deadline != 0 && System.nanoTime() - deadline > 0)
+            throw new BudgetExceeded(BudgetExceeded.Limit.DEADLINE, TimeUnit.NANOSECONDS.toMillis(root.timeoutNanos));
+        publishedStatements = statements;
+        if (yieldHook != null) yieldHook.run();
+        if (root.cancelled) throw new CancelledError();
     }
 
-    static void execBlock(BlockStmt block){
+    // after a parfor or join: fail if the ticks tasks added in absorb took the run over budget
+    void checkAbsorbedTicks(){
+        if (maxInstructions != Long.MAX_VALUE && instructionsUsed() > maxInstructions) safepoint();
+    }
+
+    // ticks used so far by this interpreter's run, including the current slice
+    long instructionsUsed(){
+        return root.ticks.get() + (sliceTicks - fuel);
+    }
+
+    // Counts the statement and tags runtime failures with its source position.
+    // Kept as a single method: every Java frame here is paid once per nesting level of script recursion.
+    void execStmt(Stmt s){
+        statements++;
+        try {
+            if (s instanceof BlockStmt) execBlock((BlockStmt)s);
+            else if (s instanceof ExprStmt) evalExpr(((ExprStmt)s).expr);
+            else if (s instanceof IfStmt){
+                IfStmt is = (IfStmt)s;
+                long cond = asLong(evalExpr(is.cond));
+                if (cond != 0) execStmt(is.thenBranch);
+                else if (is.elseBranch != null) execStmt(is.elseBranch);
+            } else if (s instanceof WhileStmt){
+                WhileStmt ws = (WhileStmt)s;
+                if (ws.counted != null && execCounted(ws.counted)) return;
+                while (asLong(evalExpr(ws.cond)) != 0){
+                    execStmt(ws.body);
+                    checkpoint();
+                }
+            } else if (s instanceof ReturnStmt){
+                ReturnStmt rs = (ReturnStmt)s;
+                Object val = rs.expr == null ? 0L : evalExpr(rs.expr);
+                throw new ReturnException(val);
+            } else if (s instanceof AssignStmt){
+                AssignStmt as = (AssignStmt)s;
+                Object val = evalExpr(as.expr);
+                assignVar(as.name, val);
+            } else if (s instanceof IndexAssignStmt){
+                execIndexAssign((IndexAssignStmt)s);
+            } else if (s instanceof ParForStmt){
+                execParFor((ParForStmt)s);
+            } else {
+                throw new RuntimeException("Unsupported stmt execution: " + s);
+            }
+        } catch (ReturnException | ScriptError ex){
+            throw ex;
+        } catch (RuntimeException ex){
+            throw new ScriptError(ScriptError.Phase.RUNTIME, ex.getMessage(), src, s.pos);
+        }
+    }
+
+    void execIndexAssign(IndexAssignStmt ia){
+        long[] a = asArray(evalExpr(ia.array));
+        int idx = checkIndex(a, asLong(evalExpr(ia.index)));
+        a[idx] = asLong(evalExpr(ia.expr));
+    }
+
+    void execBlock(BlockStmt block){
         for (Stmt st : block.stmts){
             execStmt(st);
         }
     }
 
+    /* ---------------------------
+       Counted-loop specialization
+       --------------------------- */
+
+    static final Set<String> BUILTINS = Set.of("print", "array", "len", "fill", "sum", "sort", "copy", "join",
+            "binsearch", "find", "count", "replace", "findany", "countany");
+
+    /*
+     * Plan for  while (i < n) { ... i = i + step; ... }  where nothing in the body can change n or
+     * touch i other than the one increment: no user calls (dynamic scoping lets a callee assign
+     * either), and n is a literal, a variable, or len(v) of a variable the body never assigns.
+     * The counter runs in a Java local; accumulators  acc = acc +/- i  or  acc = acc +/- k  that
+     * nothing else in the body mentions are reduced to Java locals too, and when the body holds
+     * nothing else the whole loop is computed in closed form.
+     */
+    static final class CountedLoop {
+        static final int INC = 0, ADD_VAR = 1, ADD_CONST = 2, STMT = 3;
+        String var;
+        Expr bound;
+        boolean inclusive;  // i <= n rather than i < n
+        long step;
+        int[] kind;
+        int[] acc;          // accumulator slot for ADD_* ops
+        long[] sign;        // +1 / -1 for ADD_VAR, the signed constant for ADD_CONST
+        Stmt[] stmts;       // original statements (run through execStmt for STMT ops)
+        boolean[] readsVar; // STMT op needs i written back before it runs
+        String[] accNames;
+        boolean blockBody;
+        int reducedPerIter; // statements the general path would have counted per iteration (closed form only)
+        boolean closedForm;
+
+        static CountedLoop match(WhileStmt ws){
+            if (!(ws.cond instanceof BinaryExpr)) return null;
+            BinaryExpr c = (BinaryExpr) ws.cond;
+            if (!(c.op.equals("<") || c.op.equals("<=")) || !(c.left instanceof VarExpr)) return null;
+            String var = ((VarExpr) c.left).name;
+            String boundVar = invariantBoundVar(c.right);
+            if (boundVar == null || boundVar.equals(var)) return null;
+            List<Stmt> body = ws.body instanceof BlockStmt ? ((BlockStmt) ws.body).stmts : List.of(ws.body);
+            if (anyNode(ws.body, n -> n instanceof SpawnExpr || n instanceof ParForStmt
+                    || (n instanceof CallExpr && !((CallExpr) n).builtin))) return null;
+
+            Map<String, Integer> assigns = new HashMap<>();
+            forEachNode(ws.body, n -> { if (n instanceof AssignStmt) assigns.merge(((AssignStmt) n).name, 1, Integer::sum); });
+            if (assigns.getOrDefault(var, 0) != 1 || assigns.containsKey(boundVar)) return null;
+
+            CountedLoop cl = new CountedLoop();
+            cl.var = var;
+            cl.bound = c.right;
+            cl.inclusive = c.op.equals("<=");
+            int n = body.size();
+            cl.kind = new int[n];
+            cl.acc = new int[n];
+            cl.sign = new long[n];
+            cl.stmts = body.toArray(new Stmt[0]);
+            cl.readsVar = new boolean[n];
+            List<String> accNames = new ArrayList<>();
+            boolean sawInc = false;
+            for (int k = 0; k < n; k++){
+                Stmt st = cl.stmts[k];
+                cl.kind[k] = STMT;
+                if (!(st instanceof AssignStmt)) continue;
+                AssignStmt as = (AssignStmt) st;
+                if (as.name.equals(var)){
+                    // the increment: i = i + step / i = step + i
+                    Expr other = selfOperand(as.expr, var, "+");
+                    if (!(other instanceof IntLiteral) || ((IntLiteral) other).value <= 0) return null;
+                    cl.kind[k] = INC;
+                    cl.step = ((IntLiteral) other).value;
+                    sawInc = true;
+                    continue;
+                }
+                if (as.name.equals(boundVar) || assigns.get(as.name) != 1 || mentionedOutside(body, st, as.name)) continue;
+                boolean minus = false;
+                Expr other = selfOperand(as.expr, as.name, "+");
+                if (other == null){
+                    BinaryExpr be = as.expr instanceof BinaryExpr ? (BinaryExpr) as.expr : null;
+                    if (be != null && be.op.equals("-") && be.left instanceof VarExpr && ((VarExpr) be.left).name.equals(as.name)){
+                        other = be.right;
+                        minus = true;
+                    }
+                }
+                if (other instanceof VarExpr && ((VarExpr) other).name.equals(var)){
+                    cl.kind[k] = ADD_VAR;
+                    cl.sign[k] = minus ? -1 : 1;
+                } else if (other instanceof IntLiteral){
+                    cl.kind[k] = ADD_CONST;
+                    cl.sign[k] = minus ? -((IntLiteral) other).value : ((IntLiteral) other).value;
+                } else continue;
+                cl.acc[k] = accNames.size();
+                accNames.add(as.name);
+            }
+            if (!sawInc) return null;
+            cl.accNames = accNames.toArray(new String[0]);
+            cl.closedForm = true;
+            cl.blockBody = ws.body instanceof BlockStmt;
+            cl.reducedPerIter = cl.blockBody ? 1 : 0;
+            for (int k = 0; k < n; k++){
+                if (cl.kind[k] == STMT){
+                    cl.closedForm = false;
+                    cl.readsVar[k] = anyNode(cl.stmts[k], x -> x instanceof VarExpr && ((VarExpr) x).name.equals(var));
+                } else cl.reducedPerIter++;
+            }
+            return cl;
+        }
+
+        // literal, variable or len(variable): returns the variable name the bound depends on ("" for none)
+        static String invariantBoundVar(Expr e){
+            if (e instanceof IntLiteral) return "";
+            if (e instanceof VarExpr) return ((VarExpr) e).name;
+            if (e instanceof CallExpr){
+                CallExpr ce = (CallExpr) e;
+                if (ce.builtin && ce.fname.equals("len") && ce.args.size() == 1 && ce.args.get(0) instanceof VarExpr)
+                    return ((VarExpr) ce.args.get(0)).name;
+            }
+            return null;
+        }
+
+        // for  name OP x  or  x OP name  (OP commutative) returns x
+        static Expr selfOperand(Expr e, String name, String op){
+            if (!(e instanceof BinaryExpr) || !((BinaryExpr) e).op.equals(op)) return null;
+            BinaryExpr be = (BinaryExpr) e;
+            if (be.left instanceof VarExpr && ((VarExpr) be.left).name.equals(name)) return be.right;
+            if (be.right instanceof VarExpr && ((VarExpr) be.right).name.equals(name)) return be.left;
+            return null;
+        }
+
+        static boolean mentionedOutside(List<Stmt> body, Stmt self, String name){
+            for (Stmt st : body){
+                if (st == self) continue;
+                if (anyNode(st, x -> (x instanceof VarExpr && ((VarExpr) x).name.equals(name))
+                        || (x instanceof AssignStmt && ((AssignStmt) x).name.equals(name)))) return true;
+            }
+            return false;
+        }
+    }
+
+    static void forEachNode(AST n, Consumer<AST> f){
+        anyNode(n, x -> { f.accept(x); return false; });
+    }
+
+    // pre-order walk; stops at the first node matching p
+    static boolean anyNode(AST n, java.util.function.Predicate<AST> p){
+        if (n == null) return false;
+        if (p.test(n)) return true;
+        if (n instanceof BlockStmt){ for (Stmt st : ((BlockStmt) n).stmts) if (anyNode(st, p)) return true; return false; }
+        if (n instanceof ExprStmt) return anyNode(((ExprStmt) n).expr, p);
+        if (n instanceof IfStmt){ IfStmt is = (IfStmt) n; return anyNode(is.cond, p) || anyNode(is.thenBranch, p) || anyNode(is.elseBranch, p); }
+        if (n instanceof WhileStmt) return anyNode(((WhileStmt) n).cond, p) || anyNode(((WhileStmt) n).body, p);
+        if (n instanceof ReturnStmt) return anyNode(((ReturnStmt) n).expr, p);
+        if (n instanceof AssignStmt) return anyNode(((AssignStmt) n).expr, p);
+        if (n instanceof IndexAssignStmt){ IndexAssignStmt ia = (IndexAssignStmt) n; return anyNode(ia.array, p) || anyNode(ia.index, p) || anyNode(ia.expr, p); }
+        if (n instanceof ParForStmt){ ParForStmt pf = (ParForStmt) n; return anyNode(pf.lo, p) || anyNode(pf.hi, p) || anyNode(pf.body, p); }
+        if (n instanceof BinaryExpr) return anyNode(((BinaryExpr) n).left, p) || anyNode(((BinaryExpr) n).right, p);
+        if (n instanceof IndexExpr) return anyNode(((IndexExpr) n).array, p) || anyNode(((IndexExpr) n).index, p);
+        if (n instanceof SpawnExpr) return anyNode(((SpawnExpr) n).call, p);
+        if (n instanceof CallExpr){ for (Expr a : ((CallExpr) n).args) if (anyNode(a, p)) return true; }
+        return false;
+    }
+
+    // whether assignVar(name, ...) would succeed here, without writing
+    boolean canAssign(String name){
+        boolean shared = false;
+        for (ActivationRecord ar : callStack){
+            if (ar.locals.containsKey(name)) return !shared;
+            if (ar == taskBase) shared = true;
+        }
+        return !parallel || !globalSym.containsKey(name);
+    }
+
+    // n * (n - 1) / 2 with the same wrap-around as summing step by step
+    static long triangle(long n){
+        return (n % 2 == 0) ? (n / 2) * (n - 1) : n * ((n - 1) / 2);
+    }
+
+    /**
+     * Runs a counted loop; returns false (having done nothing) when the values at entry don't fit the
+     * plan, so the caller takes the general path.
+     */
+    boolean execCounted(CountedLoop cl){
+        Object iv = lookupVar(cl.var);
+        if (!(iv instanceof Long) || !canAssign(cl.var)) return false;
+        Object bv = evalExpr(cl.bound);
+        if (!(bv instanceof Long)) return false;
+        long[] accs = new long[cl.accNames.length];
+        for (int a = 0; a < accs.length; a++){
+            Object v = lookupVar(cl.accNames[a]);
+            if (!(v instanceof Long) || !canAssign(cl.accNames[a])) return false;
+            accs[a] = (Long) v;
+        }
+        long i = (Long) iv, n = (Long) bv;
+        // inclusive bounds become exclusive unless that would overflow
+        if (cl.inclusive){
+            if (n == Long.MAX_VALUE) return false;
+            n++;
+        }
+        if (i >= n) return true;
+        if (cl.closedForm && runClosedForm(cl, i, n, accs)) return true;
+
+        try {
+            while (i < n){
+                if (cl.blockBody) statements++;
+                for (int k = 0; k < cl.kind.length; k++){
+                    switch (cl.kind[k]){
+                        case CountedLoop.INC: i += cl.step; statements++; break;
+                        case CountedLoop.ADD_VAR: accs[cl.acc[k]] += cl.sign[k] * i; statements++; break;
+                        case CountedLoop.ADD_CONST: accs[cl.acc[k]] += cl.sign[k]; statements++; break;
+                        default:
+                            if (cl.readsVar[k]) assignVar(cl.var, i);
+                            execStmt(cl.stmts[k]);
+                    }
+                }
+                checkpoint();
+            }
+        } finally {
+            assignVar(cl.var, i);
+            for (int a = 0; a < accs.length; a++) assignVar(cl.accNames[a], accs[a]);
+        }
+        return true;
+    }
+
+    // body is only the increment and accumulators: T = ceil((n - i) / step) iterations at once
+    boolean runClosedForm(CountedLoop cl, long i0, long n, long[] accs){
+        long t, last;
+        try {
+            long span = Math.subtractExact(n, i0);
+            t = span / cl.step + (span % cl.step == 0 ? 0 : 1);
+            last = Math.addExact(i0, Math.multiplyExact(cl.step, t));
+        } catch (ArithmeticException ex){
+            return false; // stepping would overflow: let the iterative path reproduce that
+        }
+        // charge one tick per iteration; near the budget, step so the limit trips at the same place
+        if (maxInstructions != Long.MAX_VALUE && t > maxInstructions - instructionsUsed()) return false;
+        // charged from the slice like any other tick, so the next safepoint sees it
+        fuel -= t;
+        boolean afterInc = false;
+        for (int k = 0; k < cl.kind.length; k++){
+            switch (cl.kind[k]){
+                case CountedLoop.INC: afterInc = true; break;
+                case CountedLoop.ADD_VAR: {
+                    // sum over iterations of (i0 + step * (j + off)), off = 1 once the increment has run
+                    long sum = t * i0 + cl.step * (triangle(t) + (afterInc ? t : 0));
+                    accs[cl.acc[k]] += cl.sign[k] * sum;
+                    break;
+                }
+                case CountedLoop.ADD_CONST: accs[cl.acc[k]] += cl.sign[k] * t; break;
+            }
+        }
+        statements += t * cl.reducedPerIter;
+        assignVar(cl.var, last);
+        for (int a = 0; a < accs.length; a++) assignVar(cl.accNames[a], accs[a]);
+        if (fuel <= 0) safepoint();
+        return true;
+    }
+
     /* ---------------------------
        CFG builder (simple stub using graph structures)
        --------------------------- */
@@ -613,21 +1633,81 @@ public class MiniInterpreter {
        Top-level runner
        --------------------------- */
 
-    static void registerFunctions(){
+    void registerFunctions(){
         for (FuncDef fd : functions){
             globalSym.put(fd.name, new Symbol(Symbol.Kind.FUNC, fd.name, fd));
         }
     }
 
-    static void runProgram(){
+    void analyze(){
         // register functions first
         registerFunctions();
         // build CFGs for each function (example of graph construction)
         for (FuncDef fd : functions){
             CFG cfg = buildCFGForFunction(fd);
             // For now we simply print a summary:
-            System.err.println("[CFG] Function " + fd.name + " has " + cfg.nodes.size() + " nodes");
+            err.append("[CFG] Function ").append(fd.name).append(" has ").append(cfg.nodes.size()).append(" nodes\n");
+        }
+        // link: resolve built-in calls and precompile search tables for literal patterns
+        for (FuncDef fd : functions) link(fd.body);
+        link(programBody);
+    }
+
+    void link(Stmt s){
+        if (s instanceof BlockStmt){ for (Stmt st : ((BlockStmt)s).stmts) link(st); }
+        else if (s instanceof ExprStmt) link(((ExprStmt)s).expr);
+        else if (s instanceof IfStmt){
+            IfStmt is = (IfStmt)s;
+            link(is.cond); link(is.thenBranch);
+            if (is.elseBranch != null) link(is.elseBranch);
+        } else if (s instanceof WhileStmt){
+            WhileStmt ws = (WhileStmt)s;
+            link(ws.cond); link(ws.body);
+            ws.counted = CountedLoop.match(ws);
+        }
+        else if (s instanceof ReturnStmt){ if (((ReturnStmt)s).expr != null) link(((ReturnStmt)s).expr); }
+        else if (s instanceof AssignStmt) link(((AssignStmt)s).expr);
+        else if (s instanceof IndexAssignStmt){
+            IndexAssignStmt ia = (IndexAssignStmt)s;
+            link(ia.array); link(ia.index); link(ia.expr);
+        } else if (s instanceof ParForStmt){
+            ParForStmt pf = (ParForStmt)s;
+            link(pf.lo); link(pf.hi); link(pf.body);
+        }
+    }
+
+    void link(Expr e){
+        if (e instanceof BinaryExpr){ link(((BinaryExpr)e).left); link(((BinaryExpr)e).right); }
+        else if (e instanceof IndexExpr){ link(((IndexExpr)e).array); link(((IndexExpr)e).index); }
+        else if (e instanceof SpawnExpr) link(((SpawnExpr)e).call);
+        else if (e instanceof CallExpr){
+            CallExpr ce = (CallExpr)e;
+            for (Expr a : ce.args) link(a);
+            // a user function shadows the built-in of the same name (print excepted, as before)
+            Symbol user = globalSym.get(ce.fname);
+            ce.builtin = BUILTINS.contains(ce.fname)
+                    && (ce.fname.equals("print") || user == null || user.kind != Symbol.Kind.FUNC);
+            if (!ce.builtin) return;
+            switch(ce.fname){
+                case "find": case "count": case "replace":
+                    if (ce.args.size() >= 2 && ce.args.get(1) instanceof StrLiteral)
+                        ce.table = new KmpTable(((StrLiteral)ce.args.get(1)).value);
+                    break;
+                case "findany": case "countany": {
+                    List<String> pats = new ArrayList<>();
+                    for (int i = 1; i < ce.args.size(); i++){
+                        if (!(ce.args.get(i) instanceof StrLiteral)) return;
+                        pats.add(((StrLiteral)ce.args.get(i)).value);
+                    }
+                    // empty patterns are left to fail at run time, where the error gets a position
+                    if (!pats.isEmpty() && !pats.contains("")) ce.table = new AhoCorasick(pats);
+                    break;
+                }
+            }
         }
+    }
+
+    void runProgram(){
         // execute top-level statements as "main"
         ActivationRecord mainAr = new ActivationRecord("main");
         callStack.push(mainAr);
@@ -635,63 +1715,205 @@ public class MiniInterpreter {
             execBlock(programBody);
         } catch (ReturnException re){
             // ignore return at top-level
+        } catch (RuntimeException | Error ex){
+            // tasks must not outlive a failed run: they share TASK_POOL with every other run
+            cancelled = true;
+            try { awaitSpawned(); } catch (RuntimeException ignored){}
+            throw ex;
         }
         callStack.pop();
+        awaitSpawned();
     }
 
     /* ---------------------------
-       API: runSource
+       API: run / runSource
        --------------------------- */
 
+    /** A script failure with the phase it happened in and its 1-based source position (0 if unknown). */
+    public static class ScriptError extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+        public enum Phase { LEX, PARSE, ANALYSIS, RUNTIME }
+        public final Phase phase;
+        public final int line, col;
+        ScriptError(Phase phase, String msg, String src, int pos){
+            // no stack trace: the script position is what callers need
+            super(msg, null, false, false);
+            this.phase = phase;
+            int ln = 0, cl = 0;
+            if (pos >= 0 && src != null){
+                ln = 1; cl = 1;
+                for (int i = 0; i < pos && i < src.length(); i++){
+                    if (src.charAt(i) == '\n'){ ln++; cl = 1; } else cl++;
+                }
+            }
+            line = ln; col = cl;
+        }
+        public String toString(){
+            String where = line > 0 ? " at " + line + ":" + col : "";
+            return phase.name().charAt(0) + phase.name().substring(1).toLowerCase() + " error" + where + ": " + getMessage();
+        }
+    }
+
+    /** Raised when a run exceeds one of its {@link Limits}. */
+    public static class BudgetExceeded extends ScriptError {
+        private static final long serialVersionUID = 1L;
+        public enum Limit {
+            INSTRUCTIONS("Instruction budget of %d exceeded"),
+            CALL_DEPTH("Call depth limit of %d exceeded"),
+            OUTPUT_BYTES("Output limit of %d bytes exceeded"),
+            DEADLINE("Deadline of %d ms exceeded");
+            final String format;
+            Limit(String f){ format = f; }
+        }
+        public final Limit limit;
+        public final long value;
+        BudgetExceeded(Limit limit, long value){
+            super(Phase.RUNTIME, String.format(limit.format, value), null, -1);
+            this.limit = limit;
+            this.value = value;
+        }
+    }
+
     /**
-     * Run source code and return combined stdout+stderr output.
-     * Resets internal state so this method can be called repeatedly.
+     * Per-run budgets; fields left at their defaults are unlimited. Instructions are ticks: loop
+     * iterations and function calls, plus one per 1024 elements or chars handled by a native
+     * built-in, checked in bulk at safepoints so the hot path only decrements a counter.
      */
-    public static String runSource(String source) {
-        // Reset all runtime/parser state
-        src = source == null ? "" : source;
-        tokenQueue = new TokenQueue();
-        functions = new ArrayList<>();
-        programBody = null;
-        globalSym = new HashMap<>();
-        callStack = new ArrayDeque<>();
+    public static class Limits {
+        public long maxInstructions = Long.MAX_VALUE;
+        public int maxCallDepth = Integer.MAX_VALUE; // frames on the call stack, top level included
+        public long maxOutputBytes = Long.MAX_VALUE;
+        public long timeoutMillis; // 0 = no deadline
+    }
+
+    /** Raised when {@link #cancel()} stops a run. */
+    public static class CancelledError extends ScriptError {
+        private static final long serialVersionUID = 1L;
+        CancelledError(){ super(Phase.RUNTIME, "Execution cancelled", null, -1); }
+    }
 
-        // Capture stdout and stderr
-        ByteArrayOutputStream baosOut = new ByteArrayOutputStream();
-        ByteArrayOutputStream baosErr = new ByteArrayOutputStream();
-        PrintStream oldOut = System.out;
-        PrintStream oldErr = System.err;
-        try (PrintStream psOut = new PrintStream(baosOut);
-             PrintStream psErr = new PrintStream(baosErr)) {
-            System.setOut(psOut);
-            System.setErr(psErr);
+    /** Outcome of one run: separate output channels, the error (if any), phase timings and counters. */
+    public static class RunResult {
+        public String stdout = "", stderr = "";
+        public ScriptError error;
+        public long lexNanos, parseNanos, analysisNanos, execNanos;
+        public long tokens, astNodes, calls, statements, instructions;
+        public int peakDepth;
+
+        public boolean ok(){ return error == null; }
+
+        /** stderr then stdout (CFG summaries before prints), followed by the error if the run failed */
+        public String combined(){
+            String s = stderr + stdout;
+            if (error != null) s += "Runtime Error:\n" + error + "\n";
+            return s.isEmpty() ? "(no output)\n" : s;
+        }
+    }
+
+    long mark;
+    // nanoseconds since the previous lap
+    long lap(){
+        long now = System.nanoTime(), d = now - mark;
+        mark = now;
+        return d;
+    }
+
+    /** Ask a running {@link #execute()} to stop; safe to call from any thread. */
+    public void cancel(){ cancelled = true; }
+
+    /** Apply budgets to the next {@link #execute()}. */
+    public void setLimits(Limits limits){
+        maxInstructions = Math.max(0, limits.maxInstructions);
+        maxCallDepth = Math.max(0, limits.maxCallDepth);
+        maxOutputBytes = Math.max(0, limits.maxOutputBytes);
+        timeoutNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, limits.timeoutMillis));
+    }
 
+    /** Stream printed lines to {@code listener} while the run is in progress; RunResult.stdout is then left empty. */
+    public void setOutputListener(Consumer<String> listener){ outputListener = listener; }
+
+    /** Statements executed so far, including finished tasks; for progress display while running. */
+    public long statementsExecuted(){
+        synchronized (this){ return publishedStatements + taskStatements; }
+    }
+
+    /** Lex, parse, analyse and execute this interpreter's source. */
+    public RunResult execute(){
+        RunResult r = new RunResult();
+        ScriptError.Phase phase = ScriptError.Phase.LEX;
+        mark = System.nanoTime();
+        if (timeoutNanos > 0) deadline = mark + timeoutNanos;
+        sliceTicks = fuel = Math.min(quantum, maxInstructions);
+        try {
             // Lex -> populate token queue
             lexAll();
+            r.lexNanos = lap();
             // Parse
+            phase = ScriptError.Phase.PARSE;
             parseProgram();
+            r.parseNanos = lap();
+            // Register functions, build CFGs
+            phase = ScriptError.Phase.ANALYSIS;
+            analyze();
+            r.analysisNanos = lap();
             // Run
+            phase = ScriptError.Phase.RUNTIME;
             runProgram();
-
-            psOut.flush();
-            psErr.flush();
-        } catch (Exception ex) {
-            // restore streams before throwing or returning
-            System.setOut(oldOut);
-            System.setErr(oldErr);
-            StringWriter sw = new StringWriter();
-            ex.printStackTrace(new PrintWriter(sw));
-            return "Runtime Error:\n" + sw.toString();
-        } finally {
-            System.setOut(oldOut);
-            System.setErr(oldErr);
+            // the last ticks may have come from tasks, or been slow ones, with no safepoint after them
+            if (instructionsUsed() > maxInstructions)
+                throw new BudgetExceeded(BudgetExceeded.Limit.INSTRUCTIONS, maxInstructions);
+            if (deadline != 0 && System.nanoTime() - deadline > 0)
+                throw new BudgetExceeded(BudgetExceeded.Limit.DEADLINE, TimeUnit.NANOSECONDS.toMillis(timeoutNanos));
+            r.execNanos = lap();
+        } catch (ScriptError ex){
+            r.error = ex;
+        } catch (RuntimeException | StackOverflowError | OutOfMemoryError ex){
+            String msg = ex instanceof StackOverflowError ? "Stack overflow at call depth " + callStack.size()
+                    : ex instanceof OutOfMemoryError ? "Out of memory" : ex.getMessage();
+            int at = phase == ScriptError.Phase.LEX ? pos : phase == ScriptError.Phase.PARSE ? cur().pos : -1;
+            r.error = new ScriptError(phase, msg, src, at);
+        }
+        if (r.error != null){
+            long d = lap();
+            switch (phase){
+                case LEX: r.lexNanos = d; break;
+                case PARSE: r.parseNanos = d; break;
+                case ANALYSIS: r.analysisNanos = d; break;
+                default: r.execNanos = d;
+            }
+        }
+        synchronized (out){ r.stdout = out.toString(); }
+        r.stderr = err.toString();
+        r.tokens = tokens;
+        r.astNodes = astNodes;
+        synchronized (this){
+            r.statements = statements + taskStatements;
+            r.calls = calls + taskCalls;
+            r.peakDepth = Math.max(peakDepth, taskPeakDepth);
         }
+        r.instructions = instructionsUsed();
+        publishedStatements = statements;
+        return r;
+    }
+
+    /** Run source code in a fresh interpreter. */
+    public static RunResult run(String source){
+        return new MiniInterpreter(source).execute();
+    }
+
+    /** Run source code in a fresh interpreter under the given budgets. */
+    public static RunResult run(String source, Limits limits){
+        MiniInterpreter interp = new MiniInterpreter(source);
+        interp.setLimits(limits);
+        return interp.execute();
+    }
 
-        // combine stderr then stdout, so CFG summaries (err) appear before print outputs (out)
-        String errPart = baosErr.toString();
-        String outPart = baosOut.toString();
-        String combined = (errPart.isEmpty() ? "" : errPart) + (outPart.isEmpty() ? "" : outPart);
-        return combined.isEmpty() ? "(no output)\n" : combined;
+    /**
+     * Run source code and return combined stdout+stderr output.
+     * Each call uses its own interpreter instance, so it can be called repeatedly.
+     */
+    public static String runSource(String source) {
+        return run(source).combined();
     }
 
     /* ---------------------------
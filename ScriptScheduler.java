@@ -0,0 +1,249 @@
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Time-slices many MiniInterpreter runs so that at most a fixed number of them ("carriers") run
+ * at once, and at most maxStarted of them have been started.
+ *
+ * The evaluator keeps its state on the Java stack (recursive AST walk plus callStack), so a
+ * context cannot be suspended without its thread: every started context owns a platform thread
+ * until it finishes, parked at a safepoint whenever it is not holding a carrier. To keep threads
+ * and stacks bounded as submissions grow, only maxStarted contexts are started at a time; the
+ * rest wait unstarted (no thread) in the ready queues and start as earlier ones finish. Within a
+ * priority class, started and unstarted contexts are served in the order they became ready.
+ * The handoffs still cost context switches, so total throughput is below running the same
+ * scripts one after another; what the scheduler bounds is CPU per tenant. A running context
+ * reaches a safepoint every quantum ticks (loop back-edges and function entries) and hands its
+ * slot over if another context is ready. Ready contexts are picked by weighted round-robin
+ * across priority classes, so HIGH gets more slices than LOW without starving it.
+ *
+ * parfor and spawn run inline on the context's own thread rather than on the shared task pool,
+ * so a tenant's tasks stay inside its slices, quanta and priority.
+ */
+public class ScriptScheduler implements AutoCloseable {
+
+    public enum Priority {
+        HIGH(4), NORMAL(2), LOW(1);
+        final int weight;
+        Priority(int w){ weight = w; }
+    }
+
+    public enum State { READY, RUNNING, DONE }
+
+    /** One submitted script: its result, state and CPU accounting. */
+    public final class Context {
+        final long id;
+        final MiniInterpreter interp;
+        final Priority priority;
+        final CompletableFuture<MiniInterpreter.RunResult> result = new CompletableFuture<>();
+        volatile State state = State.READY;
+        volatile boolean granted;
+        Thread thread;
+        long sliceStart;
+        long readySeq; // when it last joined a ready queue, for FIFO order across started/unstarted
+        volatile long cpuNanos, slices;
+
+        Context(long id, String source, Priority priority, MiniInterpreter.Limits limits){
+            this.id = id;
+            this.priority = priority;
+            interp = new MiniInterpreter(source);
+            if (limits != null) interp.setLimits(limits);
+            interp.quantum = interp.fuel = quantum;
+            interp.inlineTasks = true;
+            interp.yieldHook = () -> yieldSlice(this);
+        }
+
+        public long id(){ return id; }
+        public Priority priority(){ return priority; }
+        public State state(){ return state; }
+        /** Completes when the script finishes (including errors and cancellation). */
+        public CompletableFuture<MiniInterpreter.RunResult> result(){ return result; }
+        /** CPU time spent on a carrier (thread CPU time where supported, else wall time). */
+        public long cpuNanos(){ return cpuNanos; }
+        /** Number of slices this context has been granted. */
+        public long slices(){ return slices; }
+        /** Statements executed so far. */
+        public long statements(){ return interp.statementsExecuted(); }
+        /** Stops the script at its next safepoint. */
+        public void cancel(){ interp.cancel(); }
+    }
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    private final int carriers;
+    private final long quantum;
+    private final long stackSize;
+    private final int maxStarted;
+    private final AtomicLong nextId = new AtomicLong(1);
+
+    // --- guarded by this
+    // started contexts waiting for a carrier, and contexts that have no thread yet
+    private final EnumMap<Priority, ArrayDeque<Context>> ready = new EnumMap<>(Priority.class);
+    private final EnumMap<Priority, ArrayDeque<Context>> unstarted = new EnumMap<>(Priority.class);
+    private final EnumMap<Priority, Integer> credits = new EnumMap<>(Priority.class);
+    private final Set<Context> live = new HashSet<>();
+    private int running;
+    private int started; // contexts that own a thread and have not finished
+    private long readySeq;
+    private boolean closed;
+
+    /** @param carriers contexts allowed to run at once; @param quantum ticks per slice */
+    public ScriptScheduler(int carriers, long quantum){
+        this(carriers, quantum, 0);
+    }
+
+    /** @param stackSize per-context thread stack size in bytes (0 for the JVM default) */
+    public ScriptScheduler(int carriers, long quantum, long stackSize){
+        this(carriers, quantum, carriers * 8, stackSize);
+    }
+
+    /** @param maxStarted contexts (threads) allowed to be started at once, at least carriers */
+    public ScriptScheduler(int carriers, long quantum, int maxStarted, long stackSize){
+        if (carriers < 1 || quantum < 1) throw new IllegalArgumentException("carriers and quantum must be positive");
+        if (maxStarted < carriers) throw new IllegalArgumentException("maxStarted must be at least carriers");
+        this.carriers = carriers;
+        this.quantum = quantum;
+        this.maxStarted = maxStarted;
+        this.stackSize = stackSize;
+        for (Priority p : Priority.values()){
+            ready.put(p, new ArrayDeque<>());
+            unstarted.put(p, new ArrayDeque<>());
+            credits.put(p, p.weight);
+        }
+    }
+
+    public Context submit(String source){ return submit(source, Priority.NORMAL); }
+
+    public Context submit(String source, Priority priority){ return submit(source, priority, null); }
+
+    /** Submit with per-run budgets; a tenant over budget ends with a BudgetExceeded error. */
+    public Context submit(String source, Priority priority, MiniInterpreter.Limits limits){
+        Context c = new Context(nextId.getAndIncrement(), source, priority, limits);
+        synchronized (this){
+            if (closed) throw new IllegalStateException("scheduler is closed");
+            live.add(c);
+            c.readySeq = readySeq++;
+            unstarted.get(priority).addLast(c);
+            dispatch();
+        }
+        return c;
+    }
+
+    /** Contexts submitted and not yet finished. */
+    public synchronized List<Context> contexts(){ return new ArrayList<>(live); }
+
+    /** Cancels every unfinished context; they unwind as they get their next slice. */
+    @Override
+    public void close(){
+        List<Context> toCancel;
+        synchronized (this){
+            closed = true;
+            toCancel = new ArrayList<>(live);
+        }
+        for (Context c : toCancel) c.cancel();
+    }
+
+    // Hands free carriers to ready contexts. Caller holds the lock.
+    private void dispatch(){
+        while (running < carriers){
+            Context c = pickNext();
+            if (c == null) return;
+            running++;
+            c.state = State.RUNNING;
+            c.granted = true;
+            if (c.thread == null){
+                started++;
+                c.thread = new Thread(null, () -> runContext(c), "script-" + c.id, stackSize);
+                c.thread.setDaemon(true);
+                c.thread.start();
+            } else {
+                LockSupport.unpark(c.thread);
+            }
+        }
+    }
+
+    // Weighted round-robin: each class spends its credits, then all credits refill.
+    private Context pickNext(){
+        for (int pass = 0; pass < 2; pass++){
+            for (Priority p : Priority.values()){
+                if (credits.get(p) <= 0) continue;
+                ArrayDeque<Context> q = eligibleQueue(p);
+                if (q != null){
+                    credits.put(p, credits.get(p) - 1);
+                    return q.pollFirst();
+                }
+            }
+            for (Priority p : Priority.values()) credits.put(p, p.weight);
+        }
+        return null;
+    }
+
+    // The queue whose head became ready first; unstarted contexts only count below maxStarted.
+    private ArrayDeque<Context> eligibleQueue(Priority p){
+        ArrayDeque<Context> r = ready.get(p), u = unstarted.get(p);
+        boolean canStart = started < maxStarted && !u.isEmpty();
+        if (r.isEmpty()) return canStart ? u : null;
+        return canStart && u.peekFirst().readySeq < r.peekFirst().readySeq ? u : r;
+    }
+
+    private boolean anyReady(){
+        for (Priority p : Priority.values()) if (eligibleQueue(p) != null) return true;
+        return false;
+    }
+
+    private void runContext(Context c){
+        awaitGrant(c);
+        MiniInterpreter.RunResult r = null;
+        try {
+            r = c.interp.execute();
+        } finally {
+            endSlice(c);
+            synchronized (this){
+                running--;
+                started--;
+                live.remove(c);
+                c.state = State.DONE;
+                dispatch();
+            }
+            if (r != null) c.result.complete(r);
+            else c.result.completeExceptionally(new IllegalStateException("script " + c.id + " did not finish"));
+        }
+    }
+
+    // Safepoint callback on the context's own thread.
+    private void yieldSlice(Context c){
+        endSlice(c);
+        synchronized (this){
+            if (!anyReady()){
+                // nobody waiting: keep the carrier
+                c.granted = true;
+            } else {
+                running--;
+                c.state = State.READY;
+                c.readySeq = readySeq++;
+                ready.get(c.priority).addLast(c);
+                dispatch();
+            }
+        }
+        awaitGrant(c);
+    }
+
+    private void awaitGrant(Context c){
+        while (!c.granted) LockSupport.park(this);
+        c.granted = false;
+        c.slices++;
+        c.sliceStart = now();
+    }
+
+    private void endSlice(Context c){
+        c.cpuNanos += now() - c.sliceStart;
+    }
+
+    private static long now(){
+        return THREADS.isCurrentThreadCpuTimeSupported() ? THREADS.getCurrentThreadCpuTime() : System.nanoTime();
+    }
+}